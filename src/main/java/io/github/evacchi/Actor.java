@@ -22,40 +22,315 @@
 //JAVA 17
 //JAVAC_OPTIONS --enable-preview --release 17
 //JAVA_OPTIONS  --enable-preview
+//SOURCES ActorRuntime.java
 
 package io.github.evacchi;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
-import static java.lang.System.out;
+import java.util.function.Predicate;
 
-public interface Actor {
+public interface Actor extends ActorRuntime {
     interface Behavior extends Function<Object, Effect> {}
     interface Effect extends Function<Behavior, Behavior> {}
-    interface Address { Address tell(Object msg); }
+    interface Address {
+        Address tell(Object msg);
+        // Non-throwing tell(): false when a bounded mailbox did not accept the message, so that producers can slow down
+        default boolean offer(Object msg) { tell(msg); return true; }
+        // tell() for senders that must never wait, such as the timer thread: what a blocking mailbox cannot take right away goes to the dead letters
+        default Address tellNow(Object msg) { return tell(msg); }
+    }
+    // Messages implementing Signal (lifecycle, timers, stop requests) travel on a separate lane
+    // that is always drained before the mailbox, so that they never queue behind user traffic
+    interface Signal {}
+    Signal Terminate = new Signal() { public String toString() { return "Terminate"; } }; // stop request
+    record Watch(Address watcher) implements Signal {}
+    record Unwatch(Address watcher) implements Signal {}
+    record Terminated(Address actor) implements Signal {}
 
+    // Stay and Die are shared instances: a behavior keeping its state in fields, and returning Stay, allocates nothing per message.
+    // Become(next) allocates its effect: keep it in a field when the same transition recurs
     static Effect Become(Behavior like) { return old -> like; }
     static Effect Stay = old -> old;
-    static Effect Die = Become(msg -> { out.println("Dropping msg [" + msg + "] due to severe case of death."); return Stay; });
+    // Die stops the actor: pending and later messages go to the dead letters, and watchers are told Terminated
+    Behavior Stopped = msg -> Stay;
+    static Effect Die = Become(Stopped);
+
+    // The reply side of System.ask(): the reply completes the future.
+    // Lifecycle requests (Terminate, Watch, Unwatch) are not replies: an Ask ignores them, as it never stops
+    final class Ask extends Reply<Object> implements Address {
+        public Address tell(Object msg) {
+            if (msg != Terminate && !(msg instanceof Watch) && !(msg instanceof Unwatch)) reply(msg);
+            return this;
+        }
+    }
+
+    record Broadcast(Object msg) {}
+    // An Address that forwards each message to one of its routees on the caller's thread, with no router actor in between;
+    // the routees are a Pool. Broadcast(msg) goes to all routees. Watch, Unwatch and Terminate are for the router itself:
+    // Terminate stops all the routees and the router, and its watchers are told Terminated
+    final class Router extends Pool<Address, Object> implements Address, Watchable {
+        final System system; final Function<Address, Behavior> initial;
+
+        Router(System system, Routing<Object> routing, Function<Address, Behavior> initial, Props props) {
+            super(routing, props, system.deadLetters());
+            this.system = system; this.initial = initial;
+        }
+        public Address tell(Object msg) {
+            if (lifecycle(msg)) return this;
+            if (msg instanceof Broadcast b) for (var r : routees) r.address().tell(b.msg());
+            else route(msg, false);
+            return this;
+        }
+        public boolean offer(Object msg) {
+            if (msg instanceof Signal || msg instanceof Broadcast) { tell(msg); return true; }
+            return route(msg, true);
+        }
+        public Address tellNow(Object msg) {
+            if (msg instanceof Broadcast b) for (var r : routees) r.address().tellNow(b.msg());
+            else if (msg instanceof Signal) tell(msg);
+            else routeNow(msg);
+            return this;
+        }
+        public Router resize(int size) { resizeTo(size); return this; }
+        boolean lifecycle(Object msg) {
+            if (msg instanceof Terminated t) remove(t.actor()); // a routee stopped
+            else if (msg == Terminate) for (var w : stopAll()) ((Address) w).tell(new Terminated(this));
+            else if (msg instanceof Watch w) { if (!watch(w.watcher())) w.watcher().tell(new Terminated(this)); }
+            else if (msg instanceof Unwatch u) unwatch(u.watcher());
+            else return false;
+            return true;
+        }
+        Address start(Props props) { var routee = system.actorOf(initial, props); routee.tell(new Watch(this)); return routee; }
+        void stop(Address routee) { routee.tell(Terminate); }
+        boolean deliver(Address routee, Object msg, boolean offer) { if (offer) return routee.offer(msg); routee.tell(msg); return true; }
+        void deliverNow(Address routee, Object msg) { routee.tellNow(msg); }
+    }
+
+    // Publish/subscribe with no broker actor: publish() tells every Subscriber from the caller's thread.
+    // The topic watches its Watchable subscribers and drops them when they stop. Signals are never published:
+    // Terminate unsubscribes everyone, and Watch/Unwatch are ignored, as the topic itself never stops
+    final class Topic extends Subscribers<Address, Object> implements Address {
+        public Topic() { this(null, Integer.MAX_VALUE); }
+        public Topic(Executor executor, int chunk) { super(executor, chunk); }
+        public Address tell(Object msg) {
+            if (msg instanceof Terminated t) remove(t.actor());
+            else if (msg == Terminate) for (var s : removeAll()) { if (s instanceof Watchable) ((Address) s).tell(new Unwatch(this)); }
+            else if (!(msg instanceof Signal)) publish(msg);
+            return this;
+        }
+        // Returns the number of subscribers the message was sent to
+        public int publish(Object msg) { return fanOut(msg); }
+        public boolean subscribe(Address subscriber) {
+            if (!add(subscriber)) return false;
+            if (subscriber instanceof Watchable) subscriber.tell(new Watch(this));
+            return true;
+        }
+        public boolean unsubscribe(Address subscriber) {
+            if (!remove(subscriber)) return false;
+            if (subscriber instanceof Watchable) subscriber.tell(new Unwatch(this));
+            return true;
+        }
+        void deliver(Address subscriber, Object msg) { subscriber.tell(msg); }
+    }
+
+    // A behavior as a table from message class to handlers (Cases), in place of a switch or a chain of instanceof;
+    // the default handler gets the messages no handler takes.
+    // The table belongs to the Receive: build it once and keep it, rather than a new one on every message
+    final class Receive extends Cases<Behavior> implements Behavior {
+        final Behavior otherwise;
+
+        Receive(List<Case<Behavior>> cases, Behavior otherwise) { super(cases); this.otherwise = otherwise; }
+
+        public static Builder builder() { return new Builder(); }
+
+        public Effect apply(Object msg) { var handler = handler(msg); return (handler != null ? handler : otherwise).apply(msg); }
+
+        public static final class Builder {
+            final List<Case<Behavior>> cases = new ArrayList<>();
+            Builder() {}
+            public <M> Builder match(Class<M> type, Function<? super M, Effect> handler) { return match(type, null, handler); }
+            @SuppressWarnings("unchecked")
+            public <M> Builder match(Class<M> type, Predicate<? super M> guard, Function<? super M, Effect> handler) {
+                cases.add(new Case<>(type, (Predicate<Object>) guard, msg -> handler.apply(type.cast(msg))));
+                return this;
+            }
+            public Receive orElse(Behavior otherwise) { return new Receive(cases, otherwise); }
+            // Unhandled messages throw, as the default case of a switch would
+            public Receive build() { return orElse(msg -> { throw new RuntimeException("Unhandled message " + msg); }); }
+        }
+    }
 
-    record System(ExecutorService executorService) {
-        public Address actorOf(Function<Address, Behavior> initial) {
-            abstract class AtomicRunnableAddress implements Address, Runnable
-                { final AtomicInteger on = new AtomicInteger(0); }
+    // Told to the parent whenever the child's behavior throws; see Supervision
+    record Failed(Address child, Throwable cause, Directive directive) implements Signal {}
+    record System(ExecutorService executorService, Props props, HashedWheelTimer timer, DeadLetters deadLetters) {
+        public System(ExecutorService executorService) { this(executorService, Props.Default); }
+        public System(ExecutorService executorService, Props props) { this(executorService, props, HashedWheelTimer.Shared, new DeadLetters()); }
+
+        public void stop(Address target) { target.tell(Terminate); }
+        // The watcher is told Terminated when the target stops (immediately, if it already has)
+        public void watch(Address target, Address watcher) { target.tell(new Watch(watcher)); }
+        public void unwatch(Address target, Address watcher) { target.tell(new Unwatch(watcher)); }
+
+        // Timers deliver through tellNow(): the shared timer thread never waits for room in a mailbox, what does not fit goes to the dead letters
+        public Cancellable scheduleOnce(Address target, Object msg, long delay, TimeUnit unit) {
+            return timer.schedule(() -> target.tellNow(msg), unit.toNanos(delay), 0);
+        }
+        public Cancellable scheduleAtFixedRate(Address target, Object msg, long initialDelay, long period, TimeUnit unit) {
+            if (period <= 0) throw new IllegalArgumentException("period must be > 0");
+            return timer.schedule(() -> target.tellNow(msg), unit.toNanos(initialDelay), unit.toNanos(period));
+        }
+        // Starting a keyed timer cancels the running one with the same key on the same target; period 0 = single shot
+        public Cancellable startTimer(Object key, Address target, Object msg, long delay, long period, TimeUnit unit) {
+            return timer.schedule(new TimerKey(target, key), () -> target.tellNow(msg), unit.toNanos(delay), unit.toNanos(period));
+        }
+        public boolean cancelTimer(Object key, Address target) { return timer.cancel(new TimerKey(target, key)); }
+        record TimerKey(Address target, Object key) {}
+        // Request/response without a per-request actor: the reply completes the future, the shared timer fails it on timeout
+        public CompletableFuture<Object> ask(Address target, Function<Address, Object> request, long timeout, TimeUnit unit) {
+            var ask = new Ask();
+            return ask.send(timer, unit.toNanos(timeout), () -> target.tell(request.apply(ask)));
+        }
+
+        public Address actorOf(Function<Address, Behavior> initial) { return actorOf(initial, props); }
+        public Address actorOf(Function<Address, Behavior> initial, Props props) { return childOf(null, initial, props); }
+        // A pool of `size` routees, all started from `initial`
+        public Router routerOf(Routing<Object> routing, int size, Function<Address, Behavior> initial) { return routerOf(routing, size, initial, props); }
+        public Router routerOf(Routing<Object> routing, int size, Function<Address, Behavior> initial, Props props) {
+            return new Router(this, routing, initial, props).resize(size);
+        }
+        // The parent is told Failed whenever the child's behavior throws, and stops the child when it stops; see Supervision
+        public Address childOf(Address parent, Function<Address, Behavior> initial) { return childOf(parent, initial, props); }
+        public Address childOf(Address parent, Function<Address, Behavior> initial, Props props) {
+            abstract class AtomicRunnableAddress implements Address, Watchable, Runnable {
+                final AtomicInteger on = new AtomicInteger(0);
+                final ActorTask task = new ActorTask(this); // what the dispatcher runs: never handed out
+                final Set<Address> children = ConcurrentHashMap.newKeySet();
+                volatile boolean stopped;
+            }
             var addr = new AtomicRunnableAddress() {
-                final ConcurrentLinkedQueue<Object> mb = new ConcurrentLinkedQueue<>();
-                Behavior behavior = m -> (m instanceof Address self) ? Become(initial.apply(self)) : Stay;
-                public Address tell(Object msg) { mb.offer(msg); async(); return this; }
+                @SuppressWarnings("unchecked")
+                final Mailbox<Object> mb = (Mailbox<Object>) props.mailbox().get();
+                final ConcurrentLinkedQueue<Object> signals = new ConcurrentLinkedQueue<>(); // high-priority lane
+                final Executor dispatcher = props.dispatcher() != null ? props.dispatcher() : executorService;
+                final Instrumentation.Probe probe = props.instrumentation() != null ? props.instrumentation().probe(this) : null;
+                Behavior behavior = m -> Stay;
+                boolean suspended; int restarts; long restartWindow; // supervision state
+                ArrayList<Address> watchers;
+                public Address tell(Object msg) {
+                    if (stopped) { deadLetter(msg); return this; }
+                    if (msg instanceof Signal) return signal(msg);
+                    // what does not fit goes to the dead letters: overflow never throws into the sender
+                    if (probe == null ? !mb.enqueue(msg) : !enqueueSampled(msg)) { deadLetters.publish(this, msg); return this; }
+                    schedule(); return this;
+                }
+                public Address tellNow(Object msg) {
+                    if (stopped || msg instanceof Signal) return tell(msg);
+                    if (probe == null ? !mb.tryEnqueue(msg) : !tryEnqueueSampled(msg)) { deadLetters.publish(this, msg); return this; }
+                    schedule(); return this;
+                }
+                public boolean offer(Object msg) {
+                    if (stopped) { deadLetter(msg); return false; }
+                    if (msg instanceof Signal) { signal(msg); return true; }
+                    if (probe == null ? !mb.offer(msg) : !offerSampled(msg)) return false;
+                    schedule(); return true;
+                }
+                { if (probe != null) mb.onDropped(m -> probe.dropped()); }
+                Object sampled(Object msg) { return probe.sample() ? new Instrumentation.Sampled(msg, java.lang.System.nanoTime()) : msg; }
+                boolean offerSampled(Object msg) { if (!mb.offer(sampled(msg))) return false; probe.enqueued(); return true; }
+                boolean enqueueSampled(Object msg) { if (!mb.enqueue(sampled(msg))) return false; probe.enqueued(); return true; }
+                boolean tryEnqueueSampled(Object msg) { if (!mb.tryEnqueue(sampled(msg))) return false; probe.enqueued(); return true; }
+                Address signal(Object msg) { signals.offer(msg); schedule(); return this; }
+                void deadLetter(Object msg) {
+                    if (msg instanceof Watch w) w.watcher().tell(new Terminated(this));
+                    else if (msg != Terminate && !(msg instanceof Unwatch)) deadLetters.publish(this, msg);
+                }
                 public void run() {
-                    try { if (on.get() == 1) { var m = mb.poll(); if (m!=null) { behavior = behavior.apply(m).apply(behavior); } }}
-                    finally { on.set(0); async(); }}
-                void async() {
-                    if (!mb.isEmpty() && on.compareAndSet(0, 1)) {
-                        try { executorService.execute(this); }
+                    try { if (stopped) drain(); else if (on.get() == 1) {
+                        // drain up to `throughput` messages, or until the deadline expires, before yielding the thread
+                        long deadline = props.throughputDeadlineNanos() > 0 ? java.lang.System.nanoTime() + props.throughputDeadlineNanos() : 0L;
+                        for (int i = 0; i < props.throughput(); i++) {
+                            var m = signals.poll(); boolean signal = m != null;
+                            if (!signal && !suspended) m = mb.poll();
+                            if (m == null) break;
+                            try {
+                                // our own address on the signal lane (re)starts the actor from its initial behavior
+                                if (signal && m == this) { suspended = false; behavior = initial.apply(this); }
+                                else if (signal && lifecycle(m)) continue;
+                                else if (probe == null) behavior = behavior.apply(m).apply(behavior);
+                                else behavior = instrumented(m, signal);
+                                if (behavior == Stopped) { stop(); break; }
+                            } catch (VirtualMachineError e) { throw e; }
+                            catch (Throwable e) { failed(e); if (stopped) break; }
+                            if (deadline != 0L && java.lang.System.nanoTime() - deadline >= 0) break;
+                        }
+                    }}
+                    finally { on.set(0); if (!signals.isEmpty() || ((stopped || !suspended) && !mb.isEmpty())) schedule(); }}
+                Behavior instrumented(Object m, boolean signal) {
+                    if (!(m instanceof Instrumentation.Sampled s)) {
+                        if (!signal) probe.processed(-1, -1);
+                        return behavior.apply(m).apply(behavior);
+                    }
+                    long start = java.lang.System.nanoTime();
+                    try { return behavior.apply(s.msg()).apply(behavior); }
+                    finally { probe.processed(start - s.enqueuedNanos(), java.lang.System.nanoTime() - start); }
+                }
+                boolean lifecycle(Object m) {
+                    if (m == Terminate) stop();
+                    else if (m instanceof Watch w) { if (watchers == null) watchers = new ArrayList<>(); watchers.add(w.watcher()); }
+                    else if (m instanceof Unwatch u) { if (watchers != null) watchers.remove(u.watcher()); }
+                    else return false;
+                    return true;
+                }
+                // Stop the children, drop the behavior and the queued messages, tell the watchers; tell() no longer schedules this actor
+                void stop() {
+                    stopped = true;
+                    for (var child : children) child.tell(Terminate);
+                    if (parent instanceof AtomicRunnableAddress p) p.children.remove(this);
+                    behavior = Stopped;
+                    mb.close();
+                    drain();
+                    if (watchers != null) { for (var w : watchers) w.tell(new Terminated(this)); watchers = null; }
+                    if (probe != null) probe.stopped();
+                }
+                // Producers that raced with stop() may still enqueue and schedule: their messages are drained here too
+                void drain() {
+                    for (Object m; (m = signals.poll()) != null; ) if (m != this) deadLetter(m);
+                    for (Object m; (m = mb.poll()) != null; ) deadLetter(Instrumentation.unwrap(m));
+                }
+                // Handle the failure in-line: never rethrow into the executor
+                void failed(Throwable e) {
+                    var supervision = props.supervision();
+                    var directive = supervision.decider().apply(e);
+                    if (directive == Directive.Restart) {
+                        long now = java.lang.System.nanoTime();
+                        if (now - restartWindow > supervision.withinNanos()) { restartWindow = now; restarts = 0; }
+                        if (++restarts > supervision.maxRestarts()) directive = Directive.Stop;
+                    }
+                    if (parent != null) parent.tell(new Failed(this, e, directive)); else Supervision.unsupervised(this, e, directive);
+                    switch (directive) {
+                        case Resume -> {}
+                        case Restart -> {
+                            suspended = true; // user messages wait until the restart signal comes in
+                            long backoff = supervision.backoffNanos(restarts);
+                            if (backoff > 0) timer.schedule(() -> signal(this), backoff, 0); else signals.offer(this);
+                        }
+                        case Stop -> stop();
+                    }
+                }
+                void schedule() {
+                    if (on.compareAndSet(0, 1)) {
+                        if (probe != null) probe.scheduled();
+                        try { dispatcher.execute(task); }
                         catch (Throwable t) { on.set(0); throw t; }}}
             };
-            return addr.tell(addr); // Make the actor self aware by seeding its address to the initial behavior
+            // a child stopped along with its parent, or created after the parent stopped
+            if (parent instanceof AtomicRunnableAddress p) { p.children.add(addr); if (p.stopped) addr.tell(Terminate); }
+            return addr.signal(addr); // Make the actor self aware by seeding its address to the initial behavior
         }
     }
 
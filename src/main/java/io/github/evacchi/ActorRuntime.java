@@ -0,0 +1,706 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+
+package io.github.evacchi;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import static java.lang.System.err;
+
+// Everything that does not depend on how messages are typed, shared by Actor and TypedActor (which both extend this interface):
+// mailboxes, dispatchers, the timer, dead letters, supervision, instrumentation, props and routing,
+// plus the flavor-agnostic halves of routers, topics, Receive and ask()
+public interface ActorRuntime {
+
+    // offer() may be called by any thread; poll() and isEmpty() only by the thread currently running the actor
+    interface Mailbox<T> {
+        boolean offer(T msg);
+        T poll();
+        boolean isEmpty();
+        // Used by tell(), which never throws: false sends the message to the dead letters, as not delivered
+        default boolean enqueue(T msg) { return offer(msg); }
+        // Used by tellNow(), which must never wait: enqueue(), but giving up at once where offer() would wait for room
+        default boolean tryEnqueue(T msg) { return enqueue(msg); }
+        // Called when the actor stops, before the remaining messages go to the dead letters
+        default void close() {}
+        // Set once by the actor: called for each message that the mailbox discards on its own (a bounded mailbox overflowing)
+        default void onDropped(Consumer<? super T> dropped) {}
+
+        static <T> Mailbox<T> mpsc() { return new MpscLinkedArrayQueue<>(); }
+        // Bounded, and allocation-free once created
+        static <T> Mailbox<T> mpscArray(int capacity) { return new MpscArrayQueue<>(capacity); }
+        static <T> Mailbox<T> concurrentLinkedQueue() {
+            var q = new ConcurrentLinkedQueue<T>();
+            return new Mailbox<T>() {
+                public boolean offer(T msg) { return q.offer(msg); }
+                public T poll() { return q.poll(); }
+                public boolean isEmpty() { return q.isEmpty(); }
+            };
+        }
+
+        // Delivers messages in comparator order instead of FIFO
+        @SuppressWarnings("unchecked")
+        static <T> Mailbox<T> priority(Comparator<? super T> comparator) {
+            var q = new PriorityBlockingQueue<T>(11, (a, b) -> comparator.compare((T) Instrumentation.unwrap(a), (T) Instrumentation.unwrap(b)));
+            return new Mailbox<T>() {
+                public boolean offer(T msg) { return q.offer(msg); }
+                public T poll() { return q.poll(); }
+                public boolean isEmpty() { return q.isEmpty(); }
+            };
+        }
+
+        enum Overflow { DropNewest, DropOldest, Reject, Block }
+        // Block needs a timeout: use the overload below
+        static <T> Mailbox<T> bounded(int capacity, Overflow overflow) { return bounded(capacity, overflow, 0L); }
+        // blockTimeoutNanos: how long Block waits for room before giving up; required with Block, ignored otherwise
+        static <T> Mailbox<T> bounded(int capacity, Overflow overflow, long blockTimeoutNanos) {
+            return new BoundedMailbox<>(capacity, overflow, blockTimeoutNanos);
+        }
+
+        // offer() returns false when the message does not fit (Block: not even after waiting), or evicts the oldest one (DropOldest).
+        // tell() silently drops with DropNewest, and sends the message to the dead letters with Reject and Block;
+        // so does tellNow() (the timers), except that Block does not wait for room then.
+        // Whatever DropNewest and DropOldest drop goes to onDropped(), so that the instrumentation does not count it as queued.
+        // Capacity is tracked with a semaphore: producers take a permit, the consumer gives it back on poll()
+        final class BoundedMailbox<T> implements Mailbox<T> {
+            final Mailbox<T> queue; final Semaphore permits; final Overflow overflow; final long blockTimeoutNanos;
+            Consumer<? super T> dropped = msg -> {};
+            BoundedMailbox(int capacity, Overflow overflow, long blockTimeoutNanos) {
+                if (capacity < 1) throw new IllegalArgumentException("capacity must be >= 1");
+                if (overflow == Overflow.Block && blockTimeoutNanos <= 0) throw new IllegalArgumentException("Block needs a timeout > 0");
+                // DropOldest evicts from the producer side, so it needs a multi-consumer queue
+                this.queue = overflow == Overflow.DropOldest ? concurrentLinkedQueue() : mpsc();
+                this.permits = new Semaphore(capacity);
+                this.overflow = overflow;
+                this.blockTimeoutNanos = blockTimeoutNanos;
+            }
+            public boolean offer(T msg) {
+                switch (overflow) {
+                    case DropNewest, Reject -> { if (!permits.tryAcquire()) return false; }
+                    case DropOldest -> {
+                        while (!permits.tryAcquire()) {
+                            var oldest = queue.poll();
+                            if (oldest != null) { permits.release(); dropped.accept(oldest); }
+                        }
+                    }
+                    case Block -> {
+                        try { if (!permits.tryAcquire(blockTimeoutNanos, TimeUnit.NANOSECONDS)) return false; }
+                        catch (InterruptedException e) { Thread.currentThread().interrupt(); return false; }
+                    }
+                }
+                return queue.offer(msg);
+            }
+            public boolean enqueue(T msg) {
+                if (offer(msg)) return true;
+                if (overflow != Overflow.DropNewest) return false;
+                dropped.accept(msg); return true;
+            }
+            public boolean tryEnqueue(T msg) { return overflow != Overflow.Block ? enqueue(msg) : permits.tryAcquire() && queue.offer(msg); }
+            public T poll() { var msg = queue.poll(); if (msg != null) permits.release(); return msg; }
+            public boolean isEmpty() { return queue.isEmpty(); }
+            public void onDropped(Consumer<? super T> dropped) { this.dropped = dropped; }
+        }
+
+        // Multi-producer, single-consumer queue a la Vyukov, over a linked list of fixed-size chunks:
+        // producers claim a slot with a single getAndIncrement, the consumer never CASes,
+        // and a node is allocated every CHUNK messages instead of once per message.
+        final class MpscLinkedArrayQueue<T> implements Mailbox<T> {
+            static final int CHUNK = 64;
+            static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+            static final class Chunk {
+                final Object[] slots = new Object[CHUNK];
+                final AtomicInteger claimed = new AtomicInteger();
+                final AtomicReference<Chunk> next = new AtomicReference<>();
+            }
+            final AtomicReference<Chunk> tail;
+            Chunk head; int index; // consumer side
+
+            MpscLinkedArrayQueue() { head = new Chunk(); tail = new AtomicReference<>(head); }
+
+            public boolean offer(T msg) {
+                while (true) {
+                    var t = tail.get();
+                    if (t.claimed.get() < CHUNK) {
+                        int i = t.claimed.getAndIncrement();
+                        if (i < CHUNK) { SLOT.setVolatile(t.slots, i, msg); return true; }
+                    }
+                    // chunk is full: append a new one (or help whoever won the race) and retry
+                    var next = t.next.get();
+                    if (next == null) { t.next.compareAndSet(null, new Chunk()); next = t.next.get(); }
+                    tail.compareAndSet(t, next);
+                }
+            }
+            @SuppressWarnings("unchecked")
+            public T poll() {
+                if (index == CHUNK) {
+                    var next = head.next.get();
+                    if (next == null) return null;
+                    head = next; index = 0;
+                }
+                // null means empty, or a producer has claimed the slot and not yet written it:
+                // that producer will schedule the actor again once it is done
+                var msg = (T) SLOT.getVolatile(head.slots, index);
+                if (msg != null) head.slots[index++] = null;
+                return msg;
+            }
+            public boolean isEmpty() {
+                var h = head; int i = index;
+                if (i == CHUNK) { h = h.next.get(); i = 0; }
+                return h == null || SLOT.getVolatile(h.slots, i) == null;
+            }
+        }
+
+        // Multi-producer, single-consumer ring of `capacity` slots (rounded up to a power of two), a la JCTools' MpscArrayQueue:
+        // nothing is allocated after construction. Producers claim an index with a CAS, and offer() returns false when the ring is full;
+        // tell() sends the message to the dead letters then
+        final class MpscArrayQueue<T> implements Mailbox<T> {
+            static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+            final Object[] slots; final int mask;
+            final AtomicLong producerIndex = new AtomicLong();
+            volatile long consumerIndex; // written by the consumer only
+
+            MpscArrayQueue(int capacity) {
+                if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+                int size = 1;
+                while (size < capacity) size <<= 1;
+                slots = new Object[size]; mask = size - 1;
+            }
+
+            public boolean offer(T msg) {
+                long p;
+                do {
+                    p = producerIndex.get();
+                    if (p - consumerIndex >= slots.length) return false;
+                } while (!producerIndex.compareAndSet(p, p + 1));
+                SLOT.setRelease(slots, (int) p & mask, msg);
+                return true;
+            }
+            @SuppressWarnings("unchecked")
+            public T poll() {
+                long c = consumerIndex; int i = (int) c & mask;
+                // null means empty, or a producer has claimed the slot and not yet written it:
+                // that producer will schedule the actor again once it is done
+                var msg = (T) SLOT.getAcquire(slots, i);
+                if (msg == null) return null;
+                slots[i] = null; // published by the volatile write below, before any producer may reuse the slot
+                consumerIndex = c + 1;
+                return msg;
+            }
+            public boolean isEmpty() { return SLOT.getVolatile(slots, (int) consumerIndex & mask) == null; }
+        }
+    }
+
+    // Executors tailored to different kinds of actors; pick one per actor with Props.withDispatcher
+    interface Dispatchers {
+        // FIFO work-stealing pool for pure-CPU actors: asyncMode suits tasks that are never joined
+        static ExecutorService forkJoin() { return forkJoin(Runtime.getRuntime().availableProcessors()); }
+        static ExecutorService forkJoin(int parallelism) {
+            return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        }
+        // One virtual thread per scheduling, so that behaviors can block on I/O cheaply. Requires JDK 21+
+        static ExecutorService virtualThreads() {
+            try { return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null); }
+            catch (ReflectiveOperationException e) { throw new UnsupportedOperationException("Virtual threads require JDK 21+", e); }
+        }
+        // Virtual threads when available, a cached pool of daemon threads otherwise.
+        // One instance, created on first use and shared by all callers: never shut it down
+        static ExecutorService blocking() { return Blocking.Shared; }
+        final class Blocking {
+            static final ExecutorService Shared = create();
+            private Blocking() {}
+            static ExecutorService create() {
+                try { return virtualThreads(); }
+                catch (UnsupportedOperationException e) {
+                    return Executors.newCachedThreadPool(r -> { var t = new Thread(r, "blocking-dispatcher"); t.setDaemon(true); return t; });
+                }
+            }
+        }
+    }
+
+    interface Cancellable { boolean cancel(); }
+
+    // Implemented by the Addresses of actors and routers, which answer Watch with Terminated once they stop;
+    // topics, asks and plain lambdas do not
+    interface Watchable {}
+
+    // What an actor hands its dispatcher on every scheduling, allocated once per actor. A ForkJoinPool queues it as is,
+    // where any other Runnable would be wrapped anew each time. exec() returns false, and does not let an Error out either:
+    // the task never completes, and can be executed again. It never leaves its actor, so nobody can cancel(), complete() or join() it
+    final class ActorTask extends ForkJoinTask<Void> implements Runnable {
+        @java.io.Serial private static final long serialVersionUID = 1L;
+        final transient Runnable actor;
+        ActorTask(Runnable actor) { this.actor = actor; }
+        public void run() { actor.run(); }
+        public Void getRawResult() { return null; }
+        protected void setRawResult(Void v) {}
+        protected boolean exec() {
+            try { actor.run(); }
+            catch (Throwable t) { var thread = Thread.currentThread(); thread.getUncaughtExceptionHandler().uncaughtException(thread, t); }
+            return false;
+        }
+    }
+
+    // Hashed timing wheel (Varghese & Lauck): scheduling and cancelling are O(1), and a single thread,
+    // started on first use, expires the timeouts of one bucket every tick, and parks while none is pending.
+    // Tasks run on the timer thread: they must not block
+    final class HashedWheelTimer implements AutoCloseable {
+        // Actor systems, sockets and durable mailboxes share this one, unless they are given their own:
+        // 1 ms ticks suit flush and sync intervals as well as actor timers, and an idle wheel costs nothing
+        public static final HashedWheelTimer Shared = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 512);
+
+        static final class Timeout implements Cancellable {
+            final Runnable task; final long periodNanos; final Object key; final HashedWheelTimer timer;
+            final AtomicBoolean done = new AtomicBoolean();
+            long deadlineNanos, rounds;
+            Timeout(HashedWheelTimer timer, Object key, Runnable task, long deadlineNanos, long periodNanos) {
+                this.timer = timer; this.key = key; this.task = task; this.deadlineNanos = deadlineNanos; this.periodNanos = periodNanos;
+            }
+            public boolean cancel() {
+                if (!done.compareAndSet(false, true)) return false;
+                if (key != null) timer.keyed.remove(key, this);
+                return true; // the worker drops it lazily when it visits its bucket
+            }
+        }
+        static final class Bucket { final ArrayList<Timeout> timeouts = new ArrayList<>(); }
+
+        final long tickNanos; final Bucket[] wheel;
+        final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+        final ConcurrentHashMap<Object, Timeout> keyed = new ConcurrentHashMap<>();
+        final AtomicBoolean started = new AtomicBoolean();
+        volatile Thread worker; volatile boolean idle, closed;
+        long startNanos, tick; int size; // worker side: size counts the timeouts in the wheel, cancelled ones included
+
+        public HashedWheelTimer() { this(10, TimeUnit.MILLISECONDS, 512); }
+        public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+            if (Integer.bitCount(ticksPerWheel) != 1) throw new IllegalArgumentException("ticksPerWheel must be a power of 2");
+            this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+            this.wheel = new Bucket[ticksPerWheel];
+            for (int i = 0; i < ticksPerWheel; i++) wheel[i] = new Bucket();
+        }
+
+        public Cancellable schedule(Runnable task, long delayNanos, long periodNanos) { return schedule(null, task, delayNanos, periodNanos); }
+        // A keyed timeout replaces (and cancels) the pending timeout with the same key
+        public Cancellable schedule(Object key, Runnable task, long delayNanos, long periodNanos) {
+            if (periodNanos < 0) throw new IllegalArgumentException("periodNanos must be >= 0");
+            if (closed) throw new IllegalStateException("Timer closed");
+            var timeout = new Timeout(this, key, task, java.lang.System.nanoTime() + Math.max(0, delayNanos), periodNanos);
+            if (key != null) { var old = keyed.put(key, timeout); if (old != null) old.cancel(); }
+            pending.offer(timeout);
+            if (!started.get() && started.compareAndSet(false, true)) {
+                var w = new Thread(this::work, "actor-timer");
+                w.setDaemon(true);
+                worker = w;
+                w.start();
+            } else if (idle) LockSupport.unpark(worker);
+            return timeout;
+        }
+        public boolean cancel(Object key) { var timeout = keyed.get(key); return timeout != null && timeout.cancel(); }
+
+        // Stops the thread; pending timeouts never fire. The shared timer cannot be closed
+        public void close() {
+            if (this == Shared) throw new UnsupportedOperationException("The shared timer cannot be closed");
+            closed = true;
+            if (!started.compareAndSet(false, true)) LockSupport.unpark(worker);
+        }
+
+        void work() {
+            startNanos = java.lang.System.nanoTime();
+            var expired = new ArrayList<Timeout>();
+            while (!closed) {
+                if (size == 0 && pending.isEmpty()) {
+                    // nothing to expire: park until schedule() or close() unparks us
+                    idle = true;
+                    if (pending.isEmpty() && !closed) LockSupport.park(this);
+                    idle = false;
+                    // the empty buckets in between need no visit
+                    tick = Math.max(tick, (java.lang.System.nanoTime() - startNanos) / tickNanos);
+                    continue;
+                }
+                long deadline = startNanos + (tick + 1) * tickNanos;
+                for (long now = java.lang.System.nanoTime(); now < deadline && !closed; now = java.lang.System.nanoTime())
+                    LockSupport.parkNanos(deadline - now);
+                for (Timeout t; (t = pending.poll()) != null; ) insert(t);
+                var bucket = wheel[(int) (tick & (wheel.length - 1))].timeouts;
+                int kept = 0;
+                for (var t : bucket) {
+                    if (t.done.get()) continue; // cancelled
+                    if (t.rounds > 0) { t.rounds--; bucket.set(kept++, t); }
+                    else expired.add(t);
+                }
+                size -= bucket.size() - kept;
+                bucket.subList(kept, bucket.size()).clear();
+                for (var t : expired) {
+                    // one-shot timeouts are claimed before running, so that a concurrent cancel() reports false
+                    if (t.periodNanos == 0 && !t.done.compareAndSet(false, true)) continue;
+                    if (t.periodNanos == 0 && t.key != null) keyed.remove(t.key, t);
+                    try { t.task.run(); } catch (Throwable e) { e.printStackTrace(); }
+                }
+                tick++;
+                for (var t : expired) if (t.periodNanos > 0) { t.deadlineNanos += t.periodNanos; insert(t); } // fixed rate
+                expired.clear();
+            }
+            for (var b : wheel) { for (var t : b.timeouts) t.done.set(true); b.timeouts.clear(); }
+            for (Timeout t; (t = pending.poll()) != null; ) t.done.set(true);
+            keyed.clear();
+        }
+        void insert(Timeout t) {
+            if (t.done.get()) return;
+            long ticks = Math.max(tick, (t.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+            t.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & (wheel.length - 1))].timeouts.add(t);
+            size++;
+        }
+    }
+
+    // Messages sent to stopped actors end up here: they are counted, and logged at most once per logInterval
+    final class DeadLetters {
+        final LongAdder count = new LongAdder();
+        final AtomicLong nextLog = new AtomicLong(java.lang.System.nanoTime());
+        final long logIntervalNanos;
+        public DeadLetters() { this(1, TimeUnit.SECONDS); }
+        public DeadLetters(long logInterval, TimeUnit unit) { this.logIntervalNanos = unit.toNanos(logInterval); }
+        public long count() { return count.sum(); }
+        public void publish(Object recipient, Object msg) {
+            count.increment();
+            long now = java.lang.System.nanoTime(), next = nextLog.get();
+            if (now - next >= 0 && nextLog.compareAndSet(next, now + logIntervalNanos))
+                err.println("Dead letter [" + msg + "] to " + recipient + " (" + count.sum() + " so far)");
+        }
+    }
+
+    // When a behavior throws, the failing message is dropped, and the actor either resumes with the same behavior,
+    // restarts from its initial behavior, or stops. The failing actor's own Props decide, as given to childOf() by whoever
+    // spawned it: the parent is told Failed with the directive already taken, and cannot override it.
+    // Failures of actors with no parent are logged. Errors are failures too, but VirtualMachineErrors, which propagate.
+    // Stopping an actor, for whatever reason, stops its children first
+    enum Directive { Resume, Restart, Stop }
+    record Supervision(Function<Throwable, Directive> decider, int maxRestarts, long withinNanos, long minBackoffNanos, long maxBackoffNanos) {
+        public static final Supervision Resume = new Supervision(e -> Directive.Resume, 0, 0, 0, 0);
+        public static final Supervision Stop = new Supervision(e -> Directive.Stop, 0, 0, 0, 0);
+        // At most maxRestarts restarts within the time window, then stop
+        public static Supervision restart(int maxRestarts, long within, TimeUnit unit) {
+            return new Supervision(e -> Directive.Restart, maxRestarts, unit.toNanos(within), 0, 0);
+        }
+        public Supervision withDecider(Function<Throwable, Directive> decider) {
+            return new Supervision(decider, maxRestarts, withinNanos, minBackoffNanos, maxBackoffNanos);
+        }
+        // Exponential backoff between restarts; meanwhile messages wait in the mailbox
+        public Supervision withBackoff(long minBackoff, long maxBackoff, TimeUnit unit) {
+            return new Supervision(decider, maxRestarts, withinNanos, unit.toNanos(minBackoff), unit.toNanos(maxBackoff));
+        }
+        long backoffNanos(int restarts) { return Math.min(maxBackoffNanos, minBackoffNanos << Math.min(restarts - 1, 20)); }
+        static final java.lang.System.Logger Log = java.lang.System.getLogger(ActorRuntime.class.getName());
+        static void unsupervised(Object actor, Throwable failure, Directive directive) {
+            Log.log(java.lang.System.Logger.Level.ERROR, () -> actor + " failed (" + directive + ")", failure);
+        }
+    }
+
+    // Instrumentation SPI: one Probe per actor, created at spawn time. Actors without instrumentation pay a null check.
+    // Sampled messages travel through the mailbox wrapped with their enqueue time, so that the probe sees the queue wait
+    interface Instrumentation {
+        Probe probe(Object actor); // an Actor.Address or a TypedActor.Address
+        interface Probe {
+            boolean sample();   // should this message be timed?
+            void enqueued();    // called by the producer after the mailbox took the message
+            void dropped();     // a message counted as enqueued that the mailbox then dropped (a bounded mailbox overflowing)
+            void scheduled();   // the actor was submitted to its dispatcher
+            void processed(long waitNanos, long serviceNanos); // both -1 when the message was not sampled
+            void stopped();
+        }
+        record Sampled(Object msg, long enqueuedNanos) {}
+        static Object unwrap(Object msg) { return msg instanceof Sampled s ? s.msg() : msg; }
+    }
+
+    // throughput: max messages processed per scheduling; throughputDeadlineNanos: time budget per scheduling (0 = none);
+    // dispatcher: where the actor runs (null = the executor of the System); instrumentation: null = none
+    record Props(int throughput, long throughputDeadlineNanos, Supplier<Mailbox<?>> mailbox, Executor dispatcher, Supervision supervision, Instrumentation instrumentation) {
+        public static final Props Default = new Props(1, 0, Mailbox::mpsc, null, Supervision.Resume, null); // one message per scheduling: maximum fairness
+        public Props {
+            if (throughput < 1) throw new IllegalArgumentException("throughput must be >= 1");
+            if (throughputDeadlineNanos < 0) throw new IllegalArgumentException("throughputDeadlineNanos must be >= 0");
+        }
+        public Props withThroughput(int throughput) { return new Props(throughput, throughputDeadlineNanos, mailbox, dispatcher, supervision, instrumentation); }
+        public Props withThroughputDeadline(long nanos) { return new Props(throughput, nanos, mailbox, dispatcher, supervision, instrumentation); }
+        public Props withMailbox(Supplier<Mailbox<?>> mailbox) { return new Props(throughput, throughputDeadlineNanos, mailbox, dispatcher, supervision, instrumentation); }
+        public Props withDispatcher(Executor dispatcher) { return new Props(throughput, throughputDeadlineNanos, mailbox, dispatcher, supervision, instrumentation); }
+        public Props withSupervision(Supervision supervision) { return new Props(throughput, throughputDeadlineNanos, mailbox, dispatcher, supervision, instrumentation); }
+        public Props withInstrumentation(Instrumentation instrumentation) { return new Props(throughput, throughputDeadlineNanos, mailbox, dispatcher, supervision, instrumentation); }
+    }
+
+    // Picks the routee of a Router for each message; select() is never called with no routees
+    interface Routing<T> {
+        Routee<?> select(T msg, List<? extends Routee<?>> routees);
+
+        static <T> Routing<T> roundRobin() {
+            var next = new AtomicInteger();
+            return (msg, routees) -> routees.get(Math.floorMod(next.getAndIncrement(), routees.size()));
+        }
+        static <T> Routing<T> random() { return (msg, routees) -> routees.get(ThreadLocalRandom.current().nextInt(routees.size())); }
+        // The routee with the fewest messages waiting in its mailbox
+        static <T> Routing<T> smallestMailbox() { return new SmallestMailbox<>(); }
+        // Messages with the same key go to the same routee; resizing only moves the keys of the routees added or removed
+        static <T> Routing<T> consistentHash(Function<? super T, ?> key) { return new ConsistentHash<>(key, 64); }
+        // All routees take their messages from one shared mailbox, so that an idle routee never waits behind a busy one
+        static <T> Routing<T> balancing() { return new Balancing<>(); }
+
+        final class SmallestMailbox<T> implements Routing<T> {
+            public Routee<?> select(T msg, List<? extends Routee<?>> routees) {
+                Routee<?> min = null;
+                for (var r : routees) if (min == null || r.depth().get() < min.depth().get()) min = r;
+                return min;
+            }
+        }
+        final class Balancing<T> implements Routing<T> {
+            final Routing<T> roundRobin = roundRobin(); // just picks the routee to wake up
+            public Routee<?> select(T msg, List<? extends Routee<?>> routees) { return roundRobin.select(msg, routees); }
+        }
+        // A ring of virtualNodes points per routee, rebuilt whenever the routees change
+        final class ConsistentHash<T> implements Routing<T> {
+            record Ring(List<?> routees, long[] points, Routee<?>[] owners) {}
+            final Function<? super T, ?> key; final int virtualNodes;
+            volatile Ring ring;
+            ConsistentHash(Function<? super T, ?> key, int virtualNodes) { this.key = key; this.virtualNodes = virtualNodes; }
+            public Routee<?> select(T msg, List<? extends Routee<?>> routees) {
+                var ring = this.ring;
+                if (ring == null || ring.routees() != routees) this.ring = ring = ring(routees);
+                int i = Arrays.binarySearch(ring.points(), mix(key.apply(msg).hashCode()));
+                if (i < 0) i = -i - 1;
+                return ring.owners()[i == ring.points().length ? 0 : i];
+            }
+            Ring ring(List<? extends Routee<?>> routees) {
+                var points = new TreeMap<Long, Routee<?>>();
+                for (var r : routees)
+                    for (int v = 0; v < virtualNodes; v++) points.put(mix((long) java.lang.System.identityHashCode(r) << 32 | v), r);
+                return new Ring(routees, points.keySet().stream().mapToLong(Long::longValue).toArray(), points.values().toArray(Routee<?>[]::new));
+            }
+            static long mix(long z) { // splitmix64 finalizer
+                z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+                z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+                return z ^ (z >>> 31);
+            }
+        }
+    }
+    // depth: messages waiting in the routee's mailbox, only tracked for Routing.smallestMailbox()
+    record Routee<A>(A address, AtomicInteger depth) {}
+
+    // The routees of a Router (A: their address type, T: the message type), and how messages reach them.
+    // Routees are spawned from the same behavior and resize() grows or shrinks the pool at runtime.
+    // The messages queued at a routee that stops (or is removed) are routed again to the others
+    abstract class Pool<A, T> {
+        final Routing<T> routing; final Props props; final DeadLetters deadLetters;
+        final Mailbox<Object> shared; // balancing pools only
+        volatile List<Routee<A>> routees = List.of(); // copy-on-write, under the monitor
+        List<Object> watchers = new ArrayList<>(); // of the pool itself, under the monitor; null once it has stopped
+
+        Pool(Routing<T> routing, Props props, DeadLetters deadLetters) {
+            this.routing = routing; this.props = props; this.deadLetters = deadLetters;
+            this.shared = routing instanceof Routing.Balancing ? Mailbox.concurrentLinkedQueue() : null;
+        }
+        // Starts a routee, and has the pool watch it
+        abstract A start(Props props);
+        abstract void stop(A routee);
+        abstract boolean deliver(A routee, T msg, boolean offer);
+        abstract void deliverNow(A routee, T msg);
+
+        public List<Routee<A>> routees() { return routees; }
+        @SuppressWarnings("unchecked")
+        boolean route(T msg, boolean offer) {
+            var routees = this.routees;
+            if (routees.isEmpty()) { deadLetters.publish(this, msg); return false; }
+            return deliver((A) routing.select(msg, routees).address(), msg, offer);
+        }
+        // For tellNow(): never waits for room in the routee's mailbox
+        @SuppressWarnings("unchecked")
+        void routeNow(T msg) {
+            var routees = this.routees;
+            if (routees.isEmpty()) deadLetters.publish(this, msg); else deliverNow((A) routing.select(msg, routees).address(), msg);
+        }
+        synchronized void resizeTo(int size) {
+            if (size < 0) throw new IllegalArgumentException("size must be >= 0");
+            if (watchers == null) return; // a stopped pool stays empty
+            var next = new ArrayList<>(routees);
+            while (next.size() < size) next.add(spawn());
+            var removed = List.copyOf(next.subList(size, next.size()));
+            next.subList(size, next.size()).clear();
+            // publish first: what the removed routees still hold is routed again, and must reach the others only
+            routees = List.copyOf(next);
+            for (var r : removed) stop(r.address());
+        }
+        synchronized void remove(Object address) {
+            var next = new ArrayList<>(routees);
+            if (next.removeIf(r -> r.address() == address)) routees = List.copyOf(next);
+        }
+        // false once the pool has stopped: the watcher must be told Terminated right away
+        synchronized boolean watch(Object watcher) { return watchers != null && watchers.add(watcher); }
+        synchronized void unwatch(Object watcher) { if (watchers != null) watchers.remove(watcher); }
+        // Stops every routee, for good: returns the watchers to tell Terminated, only to the first caller
+        synchronized List<Object> stopAll() {
+            if (watchers == null) return List.of();
+            resizeTo(0);
+            var stopped = watchers; watchers = null;
+            return stopped;
+        }
+        Routee<A> spawn() {
+            var depth = new AtomicInteger();
+            var mailbox = new RouteeMailbox(shared != null ? shared : props.mailbox().get());
+            var props = this.props.withMailbox(() -> mailbox);
+            if (routing instanceof Routing.SmallestMailbox) {
+                var next = props.instrumentation();
+                props = props.withInstrumentation(actor -> new DepthProbe(depth, next == null ? null : next.probe(actor)));
+            }
+            var routee = new Routee<>(start(props), depth);
+            mailbox.routee = routee;
+            return routee;
+        }
+        // Once closed, the messages that reach the routee go back through the router
+        @SuppressWarnings("unchecked")
+        final class RouteeMailbox implements Mailbox<Object> {
+            final Mailbox<Object> queue; volatile boolean closed; volatile Routee<A> routee;
+            RouteeMailbox(Mailbox<?> queue) { this.queue = (Mailbox<Object>) queue; }
+            public boolean offer(Object msg) { return closed ? route((T) Instrumentation.unwrap(msg), true) : queue.offer(msg); }
+            public boolean enqueue(Object msg) { return closed ? route((T) Instrumentation.unwrap(msg), false) : queue.enqueue(msg); }
+            public boolean tryEnqueue(Object msg) {
+                if (!closed) return queue.tryEnqueue(msg);
+                routeNow((T) Instrumentation.unwrap(msg)); return true;
+            }
+            public Object poll() {
+                if (!closed) return queue.poll();
+                if (queue != shared) for (Object m; (m = queue.poll()) != null; ) route((T) Instrumentation.unwrap(m), false);
+                return null;
+            }
+            public boolean isEmpty() { return (closed && queue == shared) || queue.isEmpty(); }
+            public void close() { closed = true; if (routee != null) remove(routee.address()); }
+            public void onDropped(Consumer<? super Object> dropped) { queue.onDropped(dropped); }
+        }
+        record DepthProbe(AtomicInteger depth, Instrumentation.Probe next) implements Instrumentation.Probe {
+            public boolean sample() { return next != null && next.sample(); }
+            public void enqueued() { depth.incrementAndGet(); if (next != null) next.enqueued(); }
+            public void scheduled() { if (next != null) next.scheduled(); }
+            public void processed(long waitNanos, long serviceNanos) { depth.decrementAndGet(); if (next != null) next.processed(waitNanos, serviceNanos); }
+            public void dropped() { depth.decrementAndGet(); if (next != null) next.dropped(); }
+            public void stopped() { if (next != null) next.stopped(); }
+        }
+    }
+
+    // The subscribers of a Topic (A: their address type, T: the message type), in a copy-on-write array swapped with CAS.
+    // With an executor, a fan-out larger than `chunk` subscribers is split into chunks that run in parallel:
+    // faster for large topics, but then two messages from the same publisher may reach a subscriber out of order
+    abstract class Subscribers<A, T> {
+        static final Object[] NONE = {};
+        final AtomicReference<Object[]> subscribers = new AtomicReference<>(NONE);
+        final Executor executor; final int chunk;
+
+        Subscribers(Executor executor, int chunk) {
+            if (chunk < 1) throw new IllegalArgumentException("chunk must be >= 1");
+            this.executor = executor; this.chunk = chunk;
+        }
+        abstract void deliver(A subscriber, T msg);
+
+        // Returns the number of subscribers the message was sent to
+        @SuppressWarnings("unchecked")
+        int fanOut(T msg) {
+            var subscribers = this.subscribers.get();
+            if (executor == null || subscribers.length <= chunk) for (var s : subscribers) deliver((A) s, msg);
+            else for (int from = 0; from < subscribers.length; from += chunk) {
+                int start = from, end = Math.min(from + chunk, subscribers.length);
+                executor.execute(() -> { for (int i = start; i < end; i++) deliver((A) subscribers[i], msg); });
+            }
+            return subscribers.length;
+        }
+        public int size() { return subscribers.get().length; }
+        boolean add(A subscriber) {
+            Object[] current, next;
+            do {
+                current = subscribers.get();
+                for (var s : current) if (s == subscriber) return false;
+                next = Arrays.copyOf(current, current.length + 1);
+                next[current.length] = subscriber;
+            } while (!subscribers.compareAndSet(current, next));
+            return true;
+        }
+        boolean remove(Object subscriber) {
+            Object[] current, next;
+            do {
+                current = subscribers.get();
+                int i = 0;
+                while (i < current.length && current[i] != subscriber) i++;
+                if (i == current.length) return false;
+                next = current.length == 1 ? NONE : new Object[current.length - 1];
+                java.lang.System.arraycopy(current, 0, next, 0, i);
+                java.lang.System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            } while (!subscribers.compareAndSet(current, next));
+            return true;
+        }
+        Object[] removeAll() { return subscribers.getAndSet(NONE); }
+    }
+
+    // The handler table of a Receive (H: the behavior type): the handlers that may apply to a class are picked once per class
+    // (a ClassValue), in the order they were added, so that a message only meets its own handlers, however many types the actor handles.
+    // A guard restricts a handler to some of the messages of its type
+    class Cases<H> {
+        record Case<H>(Class<?> type, Predicate<Object> guard, H handler) {}
+        final Case<H>[] cases;
+        final ClassValue<Case<H>[]> table = new ClassValue<>() {
+            @SuppressWarnings("unchecked")
+            protected Case<H>[] computeValue(Class<?> type) {
+                return Arrays.stream(cases).filter(c -> c.type().isAssignableFrom(type)).toArray(Case[]::new);
+            }
+        };
+        @SuppressWarnings("unchecked")
+        Cases(List<Case<H>> cases) { this.cases = cases.toArray(Case[]::new); }
+        // null when no handler takes the message
+        H handler(Object msg) {
+            for (var c : table.get(msg.getClass()))
+                if (c.guard() == null || c.guard().test(msg)) return c.handler();
+            return null;
+        }
+    }
+
+    // The reply side of ask(): future, reply address and timeout task in a single object, instead of a whole actor
+    abstract class Reply<R> extends CompletableFuture<R> implements Runnable {
+        Cancellable timeout;
+        // The timeout is armed before the request goes out; a request that cannot be sent fails the future
+        Reply<R> send(HashedWheelTimer timer, long timeoutNanos, Runnable request) {
+            timeout = timer.schedule(this, timeoutNanos, 0);
+            try { request.run(); }
+            catch (RuntimeException e) { timeout.cancel(); completeExceptionally(e); }
+            return this;
+        }
+        void reply(R msg) { if (complete(msg)) timeout.cancel(); }
+        public void run() { completeExceptionally(new TimeoutException("Ask timed out")); }
+    }
+}
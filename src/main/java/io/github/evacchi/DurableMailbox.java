@@ -0,0 +1,224 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+//SOURCES Actor.java TypedActor.java Persistence.java
+
+package io.github.evacchi;
+
+import io.github.evacchi.Persistence.Serializer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
+
+import static io.github.evacchi.Actor.*;
+import static java.lang.System.out;
+import static java.nio.file.StandardOpenOption.*;
+
+// A mailbox that outlives the process, for either actor system: Props.withMailbox(() -> DurableMailbox.open(dir, system.deadLetters(), allowed)),
+// `allowed` being the message classes, as in Serializer.java(allowed).
+// Messages are serialized into a ring of memory-mapped segment files, each entry being [int length][int crc32c][message],
+// with a crc seeded by the entry's position, so that what is left of the previous lap never passes for a message.
+// A message counts as processed when the actor polls the next one (or finds the mailbox empty): only then the consumer offset
+// moves past it. Reopening the directory resumes from that offset, so a crash redelivers at most the message being processed:
+// at-least-once delivery. Writes land in the page cache at once, which is enough to survive the process;
+// a timer syncs them to disk in batches, every `syncInterval`.
+// When the consumer is a whole ring behind, offer() returns false, and tell() sends the message to the dead letters;
+// so it does with a message that cannot be serialized, or that does not fit in a segment, rather than throw into the sender.
+// A message that cannot be deserialized any more (its class is no longer allowed, say) goes to the dead letters as Unreadable
+public final class DurableMailbox implements Mailbox<Object> {
+    static final int HEADER = 8, END = 0, NEXT_SEGMENT = -1;
+
+    // Published to the dead letters in place of a message that fails to deserialize, which is then committed past
+    public record Unreadable(long position, IOException cause) {}
+
+    final Serializer serializer; final int segmentSize; final DeadLetters deadLetters;
+    final FileChannel[] files; final MappedByteBuffer[] segments;
+    final FileChannel offsetFile; final FileLock lock; final MappedByteBuffer offset;
+    final Cancellable syncTask;
+    final Object syncLock = new Object();
+    final AtomicBoolean syncing = new AtomicBoolean();
+    long writePosition;                   // producers, under the mailbox lock
+    long readPosition;                    // consumer only
+    long synced, syncedOffset;            // under syncLock
+    volatile long published, committed;   // end of the last whole message; start of the first one not processed yet
+    volatile boolean closed;
+
+    // With dead letters of its own: pass the system's to have them counted there
+    public static DurableMailbox open(Path dir, String... allowed) { return open(dir, new DeadLetters(), allowed); }
+    public static DurableMailbox open(Path dir, DeadLetters deadLetters, String... allowed) {
+        return open(dir, 4, 16 << 20, Serializer.java(allowed), 10, TimeUnit.MILLISECONDS, deadLetters);
+    }
+    public static DurableMailbox open(Path dir, int segments, int segmentSize, Serializer serializer, long syncInterval, TimeUnit unit, DeadLetters deadLetters) {
+        try { return new DurableMailbox(dir, segments, segmentSize, serializer, unit.toNanos(syncInterval), deadLetters); }
+        catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    DurableMailbox(Path dir, int segments, int segmentSize, Serializer serializer, long syncIntervalNanos, DeadLetters deadLetters) throws IOException {
+        if (segments < 2) throw new IllegalArgumentException("segments must be >= 2");
+        this.serializer = serializer; this.segmentSize = segmentSize; this.deadLetters = deadLetters;
+        Files.createDirectories(dir);
+        offsetFile = FileChannel.open(dir.resolve("offset"), CREATE, READ, WRITE);
+        lock = offsetFile.tryLock();
+        if (lock == null) throw new IOException(dir + " is used by another process");
+        offset = offsetFile.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        this.files = new FileChannel[segments]; this.segments = new MappedByteBuffer[segments];
+        for (int i = 0; i < segments; i++) {
+            files[i] = FileChannel.open(dir.resolve(String.format("segment-%02d", i)), CREATE, READ, WRITE);
+            this.segments[i] = files[i].map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        committed = readPosition = syncedOffset = offset.getLong(0);
+        published = writePosition = synced = recover(committed);
+        // syncs may block on the disk: the shared timer hands them to the blocking dispatcher, one at a time
+        syncTask = HashedWheelTimer.Shared.schedule(() -> {
+            if (syncing.compareAndSet(false, true)) Dispatchers.blocking().execute(() -> { try { sync(); } finally { syncing.set(false); } });
+        }, syncIntervalNanos, syncIntervalNanos);
+    }
+
+    public boolean offer(Object msg) {
+        byte[] bytes;
+        try { bytes = serializer.toBytes(Instrumentation.unwrap(msg)); }
+        catch (IOException e) { return false; } // not serializable
+        if (HEADER + bytes.length + 4 > segmentSize) return false;
+        synchronized (this) {
+            if (closed) return false;
+            long p = writePosition; int at = offsetOf(p);
+            boolean skip = at + HEADER + bytes.length + 4 > segmentSize; // the terminator after it must fit as well
+            if (skip) {
+                p += segmentSize - at; at = 0;
+                // the previous lap of the next segment must be processed
+                if (committed < p - (long) (segments.length - 1) * segmentSize) return false;
+            }
+            var segment = segmentOf(p);
+            segment.putInt(at + HEADER + bytes.length, END).put(at + HEADER, bytes);
+            segment.putInt(at + 4, crc(p, bytes, bytes.length)).putInt(at, bytes.length);
+            if (skip) segmentOf(writePosition).putInt(offsetOf(writePosition), NEXT_SEGMENT);
+            published = writePosition = p + HEADER + bytes.length;
+        }
+        return true;
+    }
+
+    // Polling the next message commits the previous one
+    public Object poll() {
+        commit();
+        while (!closed && readPosition < published) {
+            long p = readPosition; int at = offsetOf(p);
+            var segment = segmentOf(p);
+            int length = segment.getInt(at);
+            if (length == NEXT_SEGMENT) { readPosition = p + segmentSize - at; continue; }
+            var bytes = new byte[length];
+            segment.get(at + HEADER, bytes);
+            readPosition = p + HEADER + length;
+            try { return serializer.fromBytes(bytes); }
+            catch (IOException e) { deadLetters.publish(this, new Unreadable(p, e)); } // committed with the next one
+        }
+        return null;
+    }
+    public boolean isEmpty() { commit(); return closed || readPosition >= published; }
+
+    // The actor stops: what it has not processed stays in the files, for the next one opening them
+    public void close() {
+        commit();
+        synchronized (this) { closed = true; }
+        syncTask.cancel();
+        synchronized (syncLock) {
+            sync();
+            try {
+                lock.release();
+                offsetFile.close();
+                for (var f : files) f.close();
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+    }
+
+    void commit() {
+        if (committed == readPosition) return;
+        committed = readPosition;
+        offset.putLong(0, readPosition);
+    }
+
+    void sync() {
+        synchronized (syncLock) {
+            if (!offsetFile.isOpen()) return;
+            for (long p = synced, end = published; p < end; ) {
+                int at = offsetOf(p), to = (int) Math.min(segmentSize, at + end - p);
+                segmentOf(p).force(at, to - at);
+                p += to - at;
+                synced = p;
+            }
+            long c = committed;
+            if (c != syncedOffset) { offset.force(); syncedOffset = c; }
+        }
+    }
+
+    // The end of the valid messages from the committed offset on
+    long recover(long from) {
+        long p = from;
+        while (true) {
+            int at = offsetOf(p);
+            var segment = segmentOf(p);
+            int length = segment.getInt(at);
+            if (length == NEXT_SEGMENT) { p += segmentSize - at; continue; }
+            if (length <= 0 || at + HEADER + length + 4 > segmentSize) break;
+            var bytes = new byte[length];
+            segment.get(at + HEADER, bytes);
+            if (crc(p, bytes, length) != segment.getInt(at + 4)) break;
+            p += HEADER + length;
+        }
+        segmentOf(p).putInt(offsetOf(p), END);
+        return p;
+    }
+
+    MappedByteBuffer segmentOf(long position) { return segments[(int) (position / segmentSize % segments.length)]; }
+    int offsetOf(long position) { return (int) (position % segmentSize); }
+    static int crc(long position, byte[] bytes, int length) {
+        var crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(8).putLong(0, position));
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    // DurableMailbox <dir> [<count>]: queues `count` deliveries, then works through all those queued so far, one every 200 ms.
+    // Stop it halfway, and run it again
+    record Delivery(int n) implements Serializable {}
+    static void main(String... args) throws Exception {
+        var dir = Path.of(args.length > 0 ? args[0] : "deliveries");
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        var system = new Actor.System(Executors.newCachedThreadPool());
+        var deliveries = system.actorOf(self -> msg -> {
+            if (msg instanceof Delivery d) {
+                try { Thread.sleep(200); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                out.printf("Delivered #%d\n", d.n());
+            }
+            return Stay;
+        }, Props.Default.withMailbox(() -> DurableMailbox.open(dir, system.deadLetters(), "io.github.evacchi.DurableMailbox$Delivery")));
+        for (int i = 1; i <= count; i++) deliveries.tell(new Delivery(i));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+//SOURCES TypedActor.java
+
+package io.github.evacchi;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static io.github.evacchi.TypedActor.*;
+import static java.lang.System.out;
+
+// java.util.concurrent.Flow on either side of a typed actor, with memory bounded by demand.
+// subscriber(): an actor fed by a Publisher; it requests an item for each one its mailbox hands out, up to `capacity` queued.
+// publisher(): an Address an actor tells its output to, handed to the Subscriber only as fast as it requests;
+// beyond `bufferSize` undelivered items offer() returns false, and the producer is told `more` once there is room again
+public interface Flows {
+
+    // The items, then onComplete or onError(failure), are told to the actor in order, on its mailbox
+    static <T> ActorSubscriber<T> subscriber(TypedActor.System system, Function<Address<T>, Behavior<T>> initial, int capacity,
+                                             T onComplete, Function<Throwable, T> onError) {
+        return subscriber(system, initial, capacity, onComplete, onError, system.props());
+    }
+    static <T> ActorSubscriber<T> subscriber(TypedActor.System system, Function<Address<T>, Behavior<T>> initial, int capacity,
+                                             T onComplete, Function<Throwable, T> onError, Props props) {
+        var subscriber = new ActorSubscriber<T>(capacity, onComplete, onError);
+        subscriber.address = system.actorOf(initial, props.withMailbox(() -> subscriber.new DemandMailbox(props.mailbox().get())));
+        return subscriber;
+    }
+
+    static <T, R> ActorPublisher<T> publisher(int bufferSize, Address<R> producer, R more) {
+        return new ActorPublisher<>(bufferSize, () -> producer.tell(more));
+    }
+
+    final class ActorSubscriber<T> implements Flow.Subscriber<T> {
+        final int capacity, batch; final T onComplete; final Function<Throwable, T> onError;
+        final AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        Address<T> address;
+        int polled; // actor thread only
+
+        ActorSubscriber(int capacity, T onComplete, Function<Throwable, T> onError) {
+            if (capacity < 1) throw new IllegalArgumentException("capacity must be >= 1");
+            this.capacity = capacity; this.batch = Math.max(1, capacity / 2);
+            this.onComplete = onComplete; this.onError = onError;
+        }
+
+        public Address<T> address() { return address; }
+
+        public void onSubscribe(Flow.Subscription s) {
+            if (!subscription.compareAndSet(null, Objects.requireNonNull(s))) { s.cancel(); return; }
+            s.request(capacity);
+        }
+        public void onNext(T item) { address.tell(Objects.requireNonNull(item)); }
+        public void onComplete() { address.tell(onComplete); }
+        public void onError(Throwable failure) { address.tell(onError.apply(Objects.requireNonNull(failure))); }
+
+        // Asks for more as the actor takes messages out: in batches of half the capacity, so that requests are not one per item.
+        // When the actor stops, the subscription is cancelled
+        final class DemandMailbox implements Mailbox<Object> {
+            final Mailbox<Object> queue;
+            @SuppressWarnings("unchecked")
+            DemandMailbox(Mailbox<?> queue) { this.queue = (Mailbox<Object>) queue; }
+            public boolean offer(Object msg) { return queue.offer(msg); }
+            public boolean enqueue(Object msg) { return queue.enqueue(msg); }
+            public boolean tryEnqueue(Object msg) { return queue.tryEnqueue(msg); }
+            public void onDropped(Consumer<? super Object> dropped) { queue.onDropped(dropped); }
+            public Object poll() {
+                var msg = queue.poll();
+                if (msg != null && ++polled == batch) { polled = 0; subscription.get().request(batch); }
+                return msg;
+            }
+            public boolean isEmpty() { return queue.isEmpty(); }
+            public void close() {
+                queue.close();
+                var s = subscription.getAndSet(Cancelled);
+                if (s != null) s.cancel();
+            }
+        }
+        static final Flow.Subscription Cancelled = new Flow.Subscription() {
+            public void request(long n) {}
+            public void cancel() {}
+        };
+    }
+
+    // One subscriber at a time. Any thread may tell() or offer(); one of them at a time hands items to the subscriber
+    final class ActorPublisher<T> implements Flow.Publisher<T>, Address<T> {
+        final int bufferSize; final Runnable more;
+        final ConcurrentLinkedQueue<T> buffer = new ConcurrentLinkedQueue<>();
+        final AtomicInteger buffered = new AtomicInteger(), wip = new AtomicInteger();
+        final AtomicLong requested = new AtomicLong();
+        final AtomicReference<Flow.Subscriber<? super T>> subscriber = new AtomicReference<>();
+        volatile boolean full, done, cancelled;
+        volatile Throwable failure;
+        boolean terminated; // drain loop only
+
+        ActorPublisher(int bufferSize, Runnable more) {
+            if (bufferSize < 1) throw new IllegalArgumentException("bufferSize must be >= 1");
+            this.bufferSize = bufferSize; this.more = more;
+        }
+
+        public void subscribe(Flow.Subscriber<? super T> s) {
+            Objects.requireNonNull(s);
+            if (!subscriber.compareAndSet(null, s)) {
+                s.onSubscribe(ActorSubscriber.Cancelled);
+                s.onError(new IllegalStateException("This publisher allows only one subscriber"));
+                return;
+            }
+            s.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                    if (n <= 0) { failure = new IllegalArgumentException("request(" + n + "): must be > 0"); done = true; cancelled = true; }
+                    else requested.getAndAccumulate(n, (r, m) -> r + m < 0 ? Long.MAX_VALUE : r + m);
+                    drain();
+                }
+                public void cancel() { cancelled = true; drain(); }
+            });
+            drain();
+        }
+
+        // false when bufferSize items are waiting for demand: the producer is told `more` when there is room again
+        public boolean offer(T item) {
+            Objects.requireNonNull(item);
+            if (cancelled || done) return false;
+            if (buffered.incrementAndGet() > bufferSize) {
+                buffered.decrementAndGet();
+                full = true;
+                // the subscriber may have drained everything meanwhile
+                if (buffered.get() < bufferSize) wakeProducer();
+                return false;
+            }
+            buffer.offer(item);
+            drain();
+            return true;
+        }
+        public Address<T> tell(T item) {
+            if (!offer(item) && !cancelled && !done) throw new IllegalStateException("Publisher buffer full");
+            return this;
+        }
+        // The subscriber is told onComplete/onError after the buffered items
+        public void complete() { done = true; drain(); }
+        public void fail(Throwable failure) { this.failure = Objects.requireNonNull(failure); done = true; drain(); }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                var s = subscriber.get();
+                if (s != null && !terminated) {
+                    if (cancelled && failure == null) { buffer.clear(); buffered.set(0); terminated = true; }
+                    else {
+                        for (long r = requested.get(), emitted = 0; ; ) {
+                            if (emitted == r) { if (emitted > 0) requested.addAndGet(-emitted); break; }
+                            var item = buffer.poll();
+                            if (item == null) { if (emitted > 0) requested.addAndGet(-emitted); break; }
+                            buffered.decrementAndGet();
+                            s.onNext(item);
+                            emitted++;
+                        }
+                        if (full && buffered.get() <= bufferSize / 2) wakeProducer();
+                        if (done && (buffer.isEmpty() || failure != null)) {
+                            terminated = true;
+                            buffer.clear();
+                            if (failure != null) s.onError(failure); else s.onComplete();
+                        }
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+        void wakeProducer() { if (full) { full = false; more.run(); } }
+    }
+
+    // A producer actor, told `more` when there is room, feeds a publisher, which feeds a subscriber actor:
+    // at most 16 items wait in the publisher, and 16 in the subscriber's mailbox, however fast the producer is
+    sealed interface Numbers {}
+    record Item(int n) implements Numbers {}
+    record End() implements Numbers {}
+    record Failure(Throwable cause) implements Numbers {}
+    record More() {}
+    static void main(String... args) throws Exception {
+        var system = new TypedActor.System(Executors.newCachedThreadPool());
+        int count = 1_000_000;
+        var finished = new CountDownLatch(1);
+        var items = new AtomicReference<ActorPublisher<Item>>();
+        var producer = system.actorOf((Address<More> self) -> new Behavior<>() {
+            int next;
+            public Effect<More> apply(More msg) {
+                while (next < count && items.get().offer(new Item(next))) next++;
+                if (next < count) return Stay();
+                items.get().complete();
+                return Die();
+            }
+        });
+        items.set(publisher(16, producer, new More()));
+        var sum = Flows.subscriber(system, (Address<Numbers> self) -> new Behavior<>() {
+            long total;
+            public Effect<Numbers> apply(Numbers msg) {
+                switch (msg) {
+                    case Item i -> total += i.n();
+                    case End e -> { out.printf("Sum: %d\n", total); finished.countDown(); }
+                    case Failure f -> f.cause().printStackTrace();
+                }
+                return Stay();
+            }
+        }, 16, new End(), Failure::new);
+        items.get().subscribe(sum);
+        producer.tell(new More());
+        finished.await();
+        java.lang.System.exit(0);
+    }
+}
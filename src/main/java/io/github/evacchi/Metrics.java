@@ -0,0 +1,172 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+//SOURCES ActorRuntime.java
+
+package io.github.evacchi;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Metrics for actors spawned with Props.withInstrumentation(metrics), on either actor system.
+// Counters are LongAdders, latencies go to striped log-linear histograms, and only 1 message in `sampleEvery` is timed.
+// Pull them with stats()/total()/queueWaitNanos()/serviceNanos(), or register() them as an MXBean.
+public final class Metrics implements ActorRuntime.Instrumentation {
+
+    // dropped: counted as enqueued, then discarded by a bounded mailbox
+    public record Stats(long enqueued, long processed, long dropped, long mailboxDepth, long scheduled) {}
+
+    public interface MetricsMXBean {
+        int getActors();
+        long getEnqueued();
+        long getProcessed();
+        long getDropped();
+        long getMailboxDepth();
+        long getScheduled();
+        long getQueueWaitP50Nanos();
+        long getQueueWaitP99Nanos();
+        long getQueueWaitMaxNanos();
+        long getServiceP50Nanos();
+        long getServiceP99Nanos();
+        long getServiceMaxNanos();
+    }
+
+    final Map<Object, Probe> actors = new ConcurrentHashMap<>();
+    final Probe retired = new Probe(null); // counters of the actors that have stopped
+    final Histogram queueWait = new Histogram(), service = new Histogram();
+    final int sampleMask;
+
+    public Metrics() { this(16); }
+    // sampleEvery: a power of two, 1 = time every message
+    public Metrics(int sampleEvery) {
+        if (sampleEvery < 1 || Integer.bitCount(sampleEvery) != 1) throw new IllegalArgumentException("sampleEvery must be a power of two");
+        this.sampleMask = sampleEvery - 1;
+    }
+
+    public Probe probe(Object actor) { var p = new Probe(actor); actors.put(actor, p); return p; }
+
+    // null when the actor is not instrumented by this Metrics or has stopped
+    public Stats stats(Object actor) { var p = actors.get(actor); return p == null ? null : p.stats(); }
+    public Map<Object, Stats> actors() {
+        var result = new java.util.HashMap<Object, Stats>();
+        actors.forEach((a, p) -> result.put(a, p.stats()));
+        return result;
+    }
+    // Summed over all actors, including the stopped ones (whose mailbox depth is 0)
+    public Stats total() {
+        long enqueued = retired.enqueued.sum(), processed = retired.processed.sum(), dropped = retired.dropped.sum(), scheduled = retired.scheduled.sum();
+        for (var p : actors.values()) { enqueued += p.enqueued.sum(); processed += p.processed.sum(); dropped += p.dropped.sum(); scheduled += p.scheduled.sum(); }
+        return new Stats(enqueued, processed, dropped, Math.max(0, enqueued - processed - dropped), scheduled);
+    }
+    public long queueWaitNanos(double quantile) { return queueWait.quantile(quantile); }
+    public long serviceNanos(double quantile) { return service.quantile(quantile); }
+
+    // Exports the totals as io.github.evacchi:type=ActorSystem,name=<name> on the platform MBean server
+    public Metrics register(String name) {
+        try {
+            var objectName = new ObjectName("io.github.evacchi:type=ActorSystem,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), objectName);
+            return this;
+        } catch (JMException e) { throw new IllegalStateException(e); }
+    }
+
+    public final class Probe implements ActorRuntime.Instrumentation.Probe {
+        final Object actor;
+        final LongAdder enqueued = new LongAdder(), processed = new LongAdder(), dropped = new LongAdder(), scheduled = new LongAdder();
+        Probe(Object actor) { this.actor = actor; }
+        public boolean sample() { return (ThreadLocalRandom.current().nextInt() & sampleMask) == 0; }
+        public void enqueued() { enqueued.increment(); }
+        public void dropped() { dropped.increment(); }
+        public void scheduled() { scheduled.increment(); }
+        public void processed(long waitNanos, long serviceNanos) {
+            processed.increment();
+            if (waitNanos >= 0) { queueWait.record(waitNanos); service.record(serviceNanos); }
+        }
+        // Messages still queued go to the dead letters: count them as processed
+        public void stopped() {
+            if (actors.remove(actor, this)) {
+                long e = enqueued.sum(), d = dropped.sum();
+                retired.enqueued.add(e); retired.processed.add(e - d); retired.dropped.add(d); retired.scheduled.add(scheduled.sum());
+            }
+        }
+        Stats stats() {
+            long e = enqueued.sum(), p = processed.sum(), d = dropped.sum();
+            return new Stats(e, p, d, Math.max(0, e - p - d), scheduled.sum());
+        }
+    }
+
+    // Log-linear buckets (8 per power of two: values within 12.5%) over the whole range of long, in HdrHistogram fashion.
+    // Threads record into one of a few stripes, picked by thread id, and quantile() sums the stripes
+    static final class Histogram {
+        static final int SUB_BITS = 3, SUB = 1 << SUB_BITS, BUCKETS = (65 - SUB_BITS) * SUB;
+        final AtomicLongArray[] stripes;
+        Histogram() {
+            int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+            stripes = new AtomicLongArray[n];
+            for (int i = 0; i < n; i++) stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        static int index(long v) {
+            if (v < SUB) return (int) Math.max(0, v);
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+        }
+        static long lowerBound(int index) {
+            if (index < SUB) return index;
+            int exp = index / SUB + SUB_BITS - 1;
+            return (long) (SUB + index % SUB) << (exp - SUB_BITS);
+        }
+        void record(long v) {
+            int stripe = (int) (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 32) & (stripes.length - 1);
+            stripes[stripe].incrementAndGet(index(v));
+        }
+        // Upper bound of the bucket holding the quantile (0 when empty)
+        long quantile(double q) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (var s : stripes) for (int i = 0; i < BUCKETS; i++) { long c = s.get(i); counts[i] += c; total += c; }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total)), seen = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                if ((seen += counts[i]) >= rank) return i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+            return Long.MAX_VALUE;
+        }
+    }
+
+    final class MXBean implements MetricsMXBean {
+        public int getActors() { return actors.size(); }
+        public long getEnqueued() { return total().enqueued(); }
+        public long getProcessed() { return total().processed(); }
+        public long getDropped() { return total().dropped(); }
+        public long getMailboxDepth() { return total().mailboxDepth(); }
+        public long getScheduled() { return total().scheduled(); }
+        public long getQueueWaitP50Nanos() { return queueWait.quantile(0.5); }
+        public long getQueueWaitP99Nanos() { return queueWait.quantile(0.99); }
+        public long getQueueWaitMaxNanos() { return queueWait.quantile(1.0); }
+        public long getServiceP50Nanos() { return service.quantile(0.5); }
+        public long getServiceP99Nanos() { return service.quantile(0.99); }
+        public long getServiceMaxNanos() { return service.quantile(1.0); }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+//SOURCES TypedActor.java
+
+package io.github.evacchi;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+import static io.github.evacchi.TypedActor.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+import static java.lang.System.out;
+
+// Event-sourced typed actors. A command produces events; the events update the state right away,
+// and go to the journal; what the command wants done once they are durable (e.g. a reply) waits until then.
+// The journal appends the events of all its actors from one thread, syncing once for everything queued meanwhile (group commit),
+// so an actor keeps processing commands while its events are being written.
+// Every `snapshotEvery` events the state is saved too, and recovery replays only the events after the latest snapshot
+public interface Persistence {
+
+    // onCommand(state, command) says what to persist; onEvent(state, event) applies an event, live and on recovery.
+    // States should be immutable: thenRun() effects see the state as it was right after their events
+    record EventSourced<C, E, S>(String persistenceId, S emptyState, BiFunction<S, C, Persist<E, S>> onCommand,
+                                 BiFunction<S, E, S> onEvent, int snapshotEvery) {
+        public EventSourced(String persistenceId, S emptyState, BiFunction<S, C, Persist<E, S>> onCommand, BiFunction<S, E, S> onEvent) {
+            this(persistenceId, emptyState, onCommand, onEvent, 1000);
+        }
+        // 0: never
+        public EventSourced<C, E, S> withSnapshotEvery(int events) { return new EventSourced<>(persistenceId, emptyState, onCommand, onEvent, events); }
+    }
+
+    record Persist<E, S>(List<E> events, Consumer<S> then, boolean stop) {
+        public static <E, S> Persist<E, S> none() { return new Persist<>(List.of(), null, false); }
+        public static <E, S> Persist<E, S> event(E event) { return new Persist<>(List.of(event), null, false); }
+        public static <E, S> Persist<E, S> events(List<E> events) { return new Persist<>(List.copyOf(events), null, false); }
+        // Runs in the actor once the events are durable (or once the previous commands' are, when there are none)
+        public Persist<E, S> thenRun(Consumer<S> effect) { return new Persist<>(events, then == null ? effect : then.andThen(effect), stop); }
+        public Persist<E, S> thenStop() { return new Persist<>(events, then, true); }
+    }
+
+    interface Serializer {
+        byte[] toBytes(Object o) throws IOException;
+        Object fromBytes(byte[] bytes) throws IOException;
+
+        // java.io serialization. Deserializing runs code of the classes in the bytes, which anyone able to write the files
+        // controls: besides java.lang, java.util, java.time and java.math, only the classes matching the `allowed`
+        // ObjectInputFilter patterns are read, e.g. java("com.example.events.*", "com.example.State")
+        static Serializer java(String... allowed) {
+            var filter = ObjectInputFilter.Config.createFilter("maxdepth=64;java.lang.*;java.util.*;java.time.*;java.math.*;" + String.join(";", allowed) + ";!*");
+            return new Serializer() {
+                public byte[] toBytes(Object o) throws IOException {
+                    var bytes = new ByteArrayOutputStream();
+                    try (var oos = new ObjectOutputStream(bytes)) { oos.writeObject(o); }
+                    return bytes.toByteArray();
+                }
+                public Object fromBytes(byte[] bytes) throws IOException {
+                    try (var ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) { ois.setObjectInputFilter(filter); return ois.readObject(); }
+                    catch (ClassNotFoundException e) { throw new InvalidClassException(e.getMessage()); }
+                }
+            };
+        }
+    }
+
+    // Told on the signal lane when the journal has synced the events up to seqNr (or has failed to)
+    record Persisted(long seqNr, IOException failure) implements Signal {}
+
+    // Memory-mapped segment files in a directory, shared by many actors, each entry being
+    // [int length][int crc32c][short id length][id][long seqNr][event]. A zero length ends the data; so does a bad crc,
+    // which is what a write torn by a crash leaves behind. Snapshots are files of their own, replaced atomically.
+    // Once the snapshots of all the actors cover the events of a segment, its file is deleted: the journal holds what
+    // recovery replays, and reopening it scans only from the oldest segment that is left.
+    // One persistenceId must have at most one live actor at a time
+    final class Journal implements AutoCloseable {
+        sealed interface Request {}
+        record Append(String persistenceId, long seqNr, byte[] event) implements Request {}
+        // done is called once what was queued before is synced, with the failure that prevented it, if any
+        record Sync(String persistenceId, Consumer<IOException> done) implements Request {}
+        record Snapshot(String persistenceId, long seqNr, byte[] state) implements Request {}
+        record Close() implements Request {}
+
+        static final int HEADER = 8;
+        static final java.lang.System.Logger Log = java.lang.System.getLogger(Journal.class.getName());
+        final Path dir; final int segmentSize; final Serializer serializer;
+        final List<FileChannel> files = new ArrayList<>();                   // by segment number: null once trimmed
+        final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+        final Map<String, Index> index = new ConcurrentHashMap<>(); // where each actor's events are, by seqNr
+        final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+        final Thread writer;
+        // writer thread only
+        MappedByteBuffer current; int position, dirtyFrom;
+        int trimmed; // segments before it are gone
+        final Map<String, Long> snapshotted = new HashMap<>(); // seqNr of each actor's latest snapshot
+
+        // `allowed`: the classes of the events and states, as in Serializer.java(allowed)
+        public static Journal open(Path dir, String... allowed) throws IOException { return new Journal(dir, 64 << 20, Serializer.java(allowed)); }
+        public Journal(Path dir, int segmentSize, Serializer serializer) throws IOException {
+            this.dir = Files.createDirectories(dir); this.segmentSize = segmentSize; this.serializer = serializer;
+            try (var existing = Files.list(dir)) {
+                for (var p : existing.filter(p -> p.toString().endsWith(".journal")).sorted().toList()) {
+                    int n = Integer.parseInt(p.getFileName().toString().replace(".journal", ""));
+                    if (segments.isEmpty()) trimmed = n;
+                    while (segments.size() < n) { segments.add(null); files.add(null); }
+                    recover(map(p));
+                }
+            }
+            if (current == null) { map(segmentPath(segments.size())); position = 0; }
+            writer = new Thread(this::write, "journal-" + dir.getFileName());
+            writer.start();
+        }
+
+        public <C, E, S> Address<C> actorOf(TypedActor.System system, EventSourced<C, E, S> behavior) { return actorOf(system, behavior, system.props()); }
+        public <C, E, S> Address<C> actorOf(TypedActor.System system, EventSourced<C, E, S> behavior, Props props) {
+            return system.actorOf(self -> new PersistentBehavior<>(self, system, this, behavior), props);
+        }
+
+        // Waits for the queued writes
+        public void close() throws IOException {
+            requests.add(new Close());
+            try { writer.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            for (var f : files) if (f != null) f.close();
+        }
+
+        void append(String persistenceId, long seqNr, byte[] event) { requests.add(new Append(persistenceId, seqNr, event)); }
+        void sync(String persistenceId, Consumer<IOException> done) { requests.add(new Sync(persistenceId, done)); }
+        void snapshot(String persistenceId, long seqNr, byte[] state) { requests.add(new Snapshot(persistenceId, seqNr, state)); }
+
+        // Latest snapshot, or null
+        Snapshot snapshot(String persistenceId) throws IOException {
+            var path = snapshotPath(persistenceId);
+            if (!Files.exists(path)) return null;
+            var b = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (b.remaining() < 12) return null;
+            long seqNr = b.getLong(); int crc = b.getInt();
+            var state = new byte[b.remaining()];
+            b.get(state);
+            return crc(state, 0, state.length) == crc ? new Snapshot(persistenceId, seqNr, state) : null;
+        }
+        long snapshotSeqNr(String persistenceId) {
+            try { var s = snapshot(persistenceId); return s == null ? 0 : s.seqNr(); } catch (IOException e) { return 0; }
+        }
+        // An actor with no events left in the journal has all of them in its snapshot
+        Index index(String persistenceId) { return index.computeIfAbsent(persistenceId, id -> new Index(snapshotSeqNr(id))); }
+        long lastSeqNr(String persistenceId) { var i = index.get(persistenceId); return i == null ? 0 : i.size(); }
+        // The events from fromSeqNr on, as far as they have been synced
+        void replay(String persistenceId, long fromSeqNr, Consumer<byte[]> events) {
+            var i = index.get(persistenceId);
+            if (i == null) return;
+            for (long seqNr = Math.max(1, fromSeqNr), last = i.size(); seqNr <= last; seqNr++) {
+                long at = i.get(seqNr);
+                var b = segments.get((int) (at >>> 32)).duplicate().position((int) at);
+                int length = b.getInt(); b.getInt();
+                int idLength = b.getShort();
+                b.position(b.position() + idLength + 8);
+                var event = new byte[length - 2 - idLength - 8];
+                b.get(event);
+                events.accept(event);
+            }
+        }
+
+        void write() {
+            var batch = new ArrayList<Request>();
+            var accepted = new ArrayList<Append>(); var offsets = new ArrayList<Long>();
+            var appended = new HashMap<String, Long>();         // events of each actor in this batch
+            // actors with appends lost (failed, or not following the journal's seqNr): they skip the next ones, until their Sync reports it
+            var rejected = new HashMap<String, IOException>();
+            boolean closing = false;
+            while (!closing) {
+                try { batch.add(requests.take()); } catch (InterruptedException e) { return; }
+                requests.drainTo(batch);
+                IOException failure = null;
+                int start = position, startSegment = segments.size() - 1;
+                try {
+                    for (var r : batch) {
+                        if (!(r instanceof Append a) || rejected.containsKey(a.persistenceId())) continue;
+                        long expected = index(a.persistenceId()).size() + appended.getOrDefault(a.persistenceId(), 0L) + 1;
+                        if (a.seqNr() != expected) {
+                            rejected.put(a.persistenceId(), new IOException("Expected seqNr " + expected + " for " + a.persistenceId() + ", got " + a.seqNr()));
+                            continue;
+                        }
+                        offsets.add(put(a)); accepted.add(a);
+                        appended.merge(a.persistenceId(), 1L, Long::sum);
+                    }
+                    force();
+                    for (int i = 0; i < accepted.size(); i++) index(accepted.get(i).persistenceId()).add(offsets.get(i));
+                } catch (IOException | RuntimeException e) { // roll the whole batch back, even what a rollover already forced
+                    failure = e instanceof IOException io ? io : new IOException(e);
+                    for (var r : batch) if (r instanceof Append a) rejected.putIfAbsent(a.persistenceId(), failure);
+                    try { rollback(startSegment, start); }
+                    catch (IOException | RuntimeException r) { Log.log(java.lang.System.Logger.Level.ERROR, "Rolling back a failed write failed", r); }
+                }
+                // a snapshot never gets ahead of the synced events; failing to save one loses nothing, as the events are durable
+                boolean saved = false;
+                if (failure == null) for (var r : batch) {
+                    if (!(r instanceof Snapshot s) || s.seqNr() > lastSeqNr(s.persistenceId())) continue;
+                    try { save(s); saved = true; }
+                    catch (IOException | RuntimeException e) { Log.log(java.lang.System.Logger.Level.WARNING, () -> "Snapshot " + s.seqNr() + " of " + s.persistenceId() + " failed", e); }
+                }
+                try { if (saved) trim(); }
+                catch (IOException e) { Log.log(java.lang.System.Logger.Level.WARNING, "Trimming the journal failed", e); }
+                for (var r : batch) {
+                    if (r instanceof Sync s) { var lost = rejected.remove(s.persistenceId()); s.done().accept(failure != null ? failure : lost); }
+                    else if (r instanceof Close) closing = true;
+                }
+                batch.clear(); accepted.clear(); offsets.clear(); appended.clear();
+            }
+        }
+        // Returns the offset of the entry: [segment][position]
+        long put(Append a) throws IOException {
+            var id = a.persistenceId().getBytes(UTF_8);
+            int length = 2 + id.length + 8 + a.event().length;
+            if (HEADER + length + 4 > segmentSize) throw new IOException("Event too large: " + length + " bytes");
+            if (position + HEADER + length + 4 > segmentSize) { // the zero length that ends the data must fit as well
+                force();
+                map(segmentPath(segments.size()));
+                position = dirtyFrom = 0;
+            }
+            int at = position;
+            current.position(at + HEADER);
+            current.putShort((short) id.length).put(id).putLong(a.seqNr()).put(a.event());
+            current.putInt(at, length).putInt(at + 4, crc(current, at + HEADER, length)).putInt(at + HEADER + length, 0);
+            position = at + HEADER + length;
+            return (long) (segments.size() - 1) << 32 | at;
+        }
+        // Syncs what was written since the last time, with the zero length that ends it
+        void force() {
+            if (position == dirtyFrom) return;
+            current.force(dirtyFrom, Math.min(position + 4, segmentSize) - dirtyFrom);
+            dirtyFrom = position;
+        }
+        // Ends the data at `start` in `segment` again, and deletes the segments started after it
+        void rollback(int segment, int start) throws IOException {
+            for (int last; (last = files.size() - 1) > segment; ) {
+                if (segments.size() > last) segments.remove(last);
+                files.remove(last).close();
+                Files.deleteIfExists(segmentPath(last));
+            }
+            current = segments.get(segment);
+            position = dirtyFrom = start;
+            if (start + 4 <= segmentSize) { current.putInt(start, 0); current.force(start, 4); }
+        }
+
+        void save(Snapshot s) throws IOException {
+            var path = snapshotPath(s.persistenceId()); var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (var ch = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                var b = ByteBuffer.allocate(12 + s.state().length).putLong(s.seqNr()).putInt(crc(s.state(), 0, s.state().length)).put(s.state()).flip();
+                while (b.hasRemaining()) ch.write(b);
+                ch.force(true);
+            }
+            Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            snapshotted.put(s.persistenceId(), s.seqNr());
+        }
+
+        // Deletes the segments before the first one holding an event past some actor's snapshot (the current one stays),
+        // and drops the index entries the snapshots cover. The mappings go with the GC: unmapping them here could pull
+        // the memory from under a replay still reading them
+        void trim() throws IOException {
+            int floor = segments.size() - 1;
+            for (var e : index.entrySet()) {
+                var i = e.getValue();
+                long covered = Math.max(i.base, Math.min(i.size(), snapshotted.computeIfAbsent(e.getKey(), this::snapshotSeqNr)));
+                if (covered < i.size()) floor = Math.min(floor, (int) (i.get(covered + 1) >>> 32));
+                i.trim(covered);
+            }
+            for (; trimmed < floor; trimmed++) {
+                segments.set(trimmed, null);
+                files.set(trimmed, null).close();
+                Files.delete(segmentPath(trimmed));
+            }
+        }
+
+        MappedByteBuffer map(Path path) throws IOException {
+            var ch = FileChannel.open(path, CREATE, READ, WRITE);
+            files.add(ch);
+            current = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            segments.add(current);
+            return current;
+        }
+        // Indexes the valid entries of a segment, and clears what follows them
+        void recover(MappedByteBuffer segment) {
+            int p = 0;
+            while (p + HEADER <= segmentSize) {
+                int length = segment.getInt(p);
+                if (length <= 0 || p + HEADER + length > segmentSize || crc(segment, p + HEADER, length) != segment.getInt(p + 4)) break;
+                var b = segment.duplicate().position(p + HEADER);
+                var id = new byte[b.getShort()];
+                b.get(id);
+                long seqNr = b.getLong();
+                var i = index(new String(id, UTF_8));
+                if (seqNr == i.size() + 1) i.add((long) (segments.size() - 1) << 32 | p); // those before the snapshot's are left out
+                p += HEADER + length;
+            }
+            if (p + 4 <= segmentSize) segment.putInt(p, 0);
+            position = dirtyFrom = p;
+        }
+        Path segmentPath(int n) { return dir.resolve(String.format("%020d.journal", n)); }
+        Path snapshotPath(String persistenceId) { return dir.resolve(URLEncoder.encode(persistenceId, UTF_8) + ".snapshot"); }
+        static int crc(ByteBuffer b, int from, int length) { var crc = new CRC32C(); crc.update(b.duplicate().limit(from + length).position(from)); return (int) crc.getValue(); }
+        static int crc(byte[] b, int from, int length) { var crc = new CRC32C(); crc.update(b, from, length); return (int) crc.getValue(); }
+
+        // Offsets ([segment][position]) of one actor's events: seqNr n is at get(n), for the n past `base`, those trimmed away
+        static final class Index {
+            long[] offsets = new long[16]; int count; long base;
+            Index(long base) { this.base = base; }
+            synchronized void add(long offset) {
+                if (count == offsets.length) offsets = java.util.Arrays.copyOf(offsets, count * 2);
+                offsets[count++] = offset;
+            }
+            synchronized long get(long seqNr) {
+                if (seqNr <= base) throw new IllegalStateException("Event " + seqNr + " is covered by a snapshot, and was trimmed");
+                return offsets[(int) (seqNr - base) - 1];
+            }
+            synchronized long size() { return base + count; }
+            // Forgets the events up to seqNr
+            synchronized void trim(long seqNr) {
+                int n = (int) Math.min(count, seqNr - base);
+                if (n <= 0) return;
+                java.lang.System.arraycopy(offsets, n, offsets, 0, count - n);
+                count -= n; base += n;
+            }
+        }
+    }
+
+    // Recovers in its constructor: a restart (supervision) recovers again, from what the journal has synced
+    final class PersistentBehavior<C, E, S> implements Behavior<C> {
+        record Pending<S>(long seqNr, S state, Consumer<S> then, boolean stop) {}
+        final Address<C> self; final TypedActor.System system; final Journal journal; final EventSourced<C, E, S> spec;
+        final ArrayDeque<Pending<S>> pending = new ArrayDeque<>();
+        S state; long seqNr, synced, syncing; boolean stopping; // syncing: seqNr of the Sync in flight, or 0
+
+        @SuppressWarnings("unchecked")
+        PersistentBehavior(Address<C> self, TypedActor.System system, Journal journal, EventSourced<C, E, S> spec) {
+            this.self = self; this.system = system; this.journal = journal; this.spec = spec;
+            try {
+                var snapshot = journal.snapshot(spec.persistenceId());
+                state = snapshot == null ? spec.emptyState() : (S) journal.serializer.fromBytes(snapshot.state());
+                seqNr = snapshot == null ? 0 : snapshot.seqNr();
+                journal.replay(spec.persistenceId(), seqNr + 1, bytes -> {
+                    try { state = spec.onEvent().apply(state, (E) journal.serializer.fromBytes(bytes)); seqNr++; }
+                    catch (IOException e) { throw new UncheckedIOException(e); }
+                });
+                synced = seqNr;
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+
+        public Effect<C> apply(C msg) {
+            if ((Object) msg instanceof Persisted p) return persisted(p);
+            if (stopping) { system.deadLetters().publish(self, msg); return Stay(); }
+            var persist = spec.onCommand().apply(state, msg);
+            try {
+                for (var event : persist.events()) {
+                    var bytes = journal.serializer.toBytes(event);
+                    state = spec.onEvent().apply(state, event);
+                    journal.append(spec.persistenceId(), ++seqNr, bytes);
+                    if (spec.snapshotEvery() > 0 && seqNr % spec.snapshotEvery() == 0)
+                        journal.snapshot(spec.persistenceId(), seqNr, journal.serializer.toBytes(state));
+                }
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+            if (synced == seqNr) { // nothing to wait for
+                if (persist.then() != null) persist.then().accept(state);
+                return persist.stop() ? Die() : Stay();
+            }
+            // one Sync per batch of commands, effects or not, so that a failed append always comes back:
+            // the effects of the commands processed before it is acknowledged wait for the next one
+            if (syncing == 0) { syncing = seqNr; journal.sync(spec.persistenceId(), persisted(seqNr)); }
+            if (persist.then() == null && !persist.stop()) return Stay();
+            stopping = persist.stop();
+            pending.add(new Pending<>(seqNr, state, persist.then(), persist.stop()));
+            return Stay();
+        }
+        @SuppressWarnings("unchecked")
+        Consumer<IOException> persisted(long n) { return failure -> ((Address<Object>) self).tell(new Persisted(n, failure)); }
+
+        // A failed write loses the events from `synced` on, and the effects waiting for them: the state and seqNr have run ahead
+        // of the journal, so the actor restarts from what is durable, whatever its supervision
+        Effect<C> persisted(Persisted p) {
+            if (p.failure() != null) {
+                Journal.Log.log(java.lang.System.Logger.Level.ERROR, () -> "Journal write failed for " + spec.persistenceId() + ": restarting at seqNr " + synced, p.failure());
+                return Become(new PersistentBehavior<>(self, system, journal, spec));
+            }
+            synced = p.seqNr(); syncing = 0;
+            while (!pending.isEmpty() && pending.peek().seqNr() <= synced) {
+                var next = pending.poll();
+                if (next.then() != null) next.then().accept(next.state());
+                if (next.stop()) return Die();
+            }
+            if (synced < seqNr) { syncing = seqNr; journal.sync(spec.persistenceId(), persisted(seqNr)); }
+            return Stay();
+        }
+    }
+
+    // A coin box that keeps its total across runs: run it twice
+    sealed interface CoinBox {}
+    record Insert(int amount) implements CoinBox {}
+    record Total(Address<Integer> replyTo) implements CoinBox {}
+    record Inserted(int amount) implements Serializable {}
+    static void main(String... args) throws Exception {
+        var system = new TypedActor.System(Executors.newCachedThreadPool());
+        try (var journal = Journal.open(Path.of(args.length > 0 ? args[0] : "coin-box-journal"), "io.github.evacchi.Persistence$Inserted")) {
+            var coinBox = journal.actorOf(system, new EventSourced<CoinBox, Inserted, Integer>("coin-box", 0,
+                    (total, command) -> switch (command) {
+                        case Insert i -> Persist.event(new Inserted(i.amount()));
+                        case Total t -> Persist.<Inserted, Integer>none().thenRun(t.replyTo()::tell);
+                    },
+                    (total, event) -> total + event.amount()));
+            out.printf("Recovered total: %d\n", system.ask(coinBox, Total::new, 10, TimeUnit.SECONDS).get());
+            int coins = 100_000;
+            long start = java.lang.System.nanoTime();
+            for (int i = 0; i < coins; i++) coinBox.tell(new Insert(1));
+            var total = system.ask(coinBox, Total::new, 60, TimeUnit.SECONDS).get();
+            out.printf("Total: %d, %d coins persisted in %d ms\n", total, coins, (java.lang.System.nanoTime() - start) / 1_000_000);
+        }
+        java.lang.System.exit(0);
+    }
+}
@@ -22,44 +22,328 @@
 //JAVA 17
 //JAVAC_OPTIONS --enable-preview --release 17
 //JAVA_OPTIONS  --enable-preview
+//SOURCES ActorRuntime.java
 
 package io.github.evacchi;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import static java.lang.System.out;
 
-public interface TypedActor {
+public interface TypedActor extends ActorRuntime {
     interface Effect<T> extends Function<Behavior<T>, Behavior<T>> {}
     interface Behavior<T> extends Function<T, Effect<T>> {}
-    interface Address<T> { Address<T> tell(T msg); }
+    interface Address<T> {
+        Address<T> tell(T msg);
+        // Non-throwing tell(): false when a bounded mailbox did not accept the message, so that producers can slow down
+        default boolean offer(T msg) { tell(msg); return true; }
+        // tell() for senders that must never wait, such as the timer thread: what a blocking mailbox cannot take right away goes to the dead letters
+        default Address<T> tellNow(T msg) { return tell(msg); }
+    }
+    // Messages implementing Signal (lifecycle, timers, stop requests) travel on a separate lane
+    // that is always drained before the mailbox, so that they never queue behind user traffic
+    interface Signal {}
+    Signal Terminate = new Signal() { public String toString() { return "Terminate"; } }; // stop request
+    record Watch(Address<? super Terminated> watcher) implements Signal {}
+    record Unwatch(Address<? super Terminated> watcher) implements Signal {}
+    record Terminated(Address<?> actor) implements Signal {}
+    // Stay() and Die() return shared instances: a behavior keeping its state in fields, and returning Stay(), allocates nothing per message.
+    // Become(next) allocates its effect: keep it in a field when the same transition recurs
     static <T> Effect<T> Become(Behavior<T> next) { return current -> next; }
     static <T> Effect<T> Stay() { return current -> current; }
-    static <T> Effect<T> Die() { return Become(msg -> { out.println("Dropping msg [" + msg + "] due to severe case of death."); return Stay(); }); }
-    record System(Executor executor) {
-        public <T> Address<T> actorOf(Function<Address<T>, Behavior<T>> initial) {
-            abstract class AtomicRunnableAddress<T> implements Address<T>, Runnable
-                { AtomicInteger on = new AtomicInteger(0); }
-            return new AtomicRunnableAddress<T>() {
-                // Our awesome little mailbox, free of blocking and evil
-                final ConcurrentLinkedQueue<T> mbox = new ConcurrentLinkedQueue<>();
+    // Die stops the actor: pending and later messages go to the dead letters, and watchers are told Terminated
+    Behavior<Object> Stopped = msg -> Stay();
+    @SuppressWarnings("unchecked")
+    static <T> Effect<T> Die() { return current -> (Behavior<T>) (Behavior<?>) Stopped; }
+
+    // The reply side of System.ask(): the reply completes the future.
+    // Lifecycle requests (Terminate, Watch, Unwatch) are not replies: an Ask ignores them, as it never stops
+    final class Ask<R> extends Reply<R> implements Address<R> {
+        public Address<R> tell(R msg) {
+            if (msg != Terminate && !(msg instanceof Watch) && !(msg instanceof Unwatch)) reply(msg);
+            return this;
+        }
+    }
+
+    // An Address that forwards each message to one of its routees on the caller's thread, with no router actor in between;
+    // the routees are a Pool. broadcast(msg) goes to all routees. Watch, Unwatch and Terminate are for the router itself:
+    // Terminate (System.stop) stops all the routees and the router, and its watchers are told Terminated
+    final class Router<T> extends Pool<Address<T>, T> implements Address<T>, Watchable {
+        final System system; final Function<Address<T>, Behavior<T>> initial;
+        final Address<Terminated> watcher = this::terminated;
+
+        Router(System system, Routing<T> routing, Function<Address<T>, Behavior<T>> initial, Props props) {
+            super(routing, props, system.deadLetters());
+            this.system = system; this.initial = initial;
+        }
+        public Address<T> tell(T msg) {
+            if (!lifecycle(msg)) route(msg, false);
+            return this;
+        }
+        public boolean offer(T msg) { return lifecycle(msg) || route(msg, true); }
+        public Address<T> tellNow(T msg) {
+            if (!lifecycle(msg)) routeNow(msg);
+            return this;
+        }
+        public Router<T> broadcast(T msg) { for (var r : routees) r.address().tell(msg); return this; }
+        public Router<T> resize(int size) { resizeTo(size); return this; }
+        @SuppressWarnings("unchecked")
+        boolean lifecycle(Object msg) {
+            if (msg == Terminate) for (var w : stopAll()) ((Address<? super Terminated>) w).tell(new Terminated(this));
+            else if (msg instanceof Watch w) { if (!watch(w.watcher())) w.watcher().tell(new Terminated(this)); }
+            else if (msg instanceof Unwatch u) unwatch(u.watcher());
+            else return false;
+            return true;
+        }
+        Address<Terminated> terminated(Terminated t) { remove(t.actor()); return watcher; }
+        Address<T> start(Props props) { var routee = system.actorOf(initial, props); system.watch(routee, watcher); return routee; }
+        void stop(Address<T> routee) { system.stop(routee); }
+        boolean deliver(Address<T> routee, T msg, boolean offer) { if (offer) return routee.offer(msg); routee.tell(msg); return true; }
+        void deliverNow(Address<T> routee, T msg) { routee.tellNow(msg); }
+    }
+
+    // Publish/subscribe with no broker actor: publish() tells every Subscriber from the caller's thread.
+    // The topic watches its Watchable subscribers and drops them when they stop. Signals are never published:
+    // Terminate (System.stop) unsubscribes everyone, and Watch/Unwatch are ignored, as the topic itself never stops
+    final class Topic<T> extends Subscribers<Address<? super T>, T> implements Address<T> {
+        final Address<Terminated> watcher = this::terminated;
+
+        public Topic() { this(null, Integer.MAX_VALUE); }
+        public Topic(Executor executor, int chunk) { super(executor, chunk); }
+        @SuppressWarnings("unchecked")
+        public Address<T> tell(T msg) {
+            if (msg == (Object) Terminate) for (var s : removeAll()) { if (s instanceof Watchable) ((Address<Object>) s).tell(new Unwatch(watcher)); }
+            else if (!(msg instanceof Signal)) publish(msg);
+            return this;
+        }
+        // Returns the number of subscribers the message was sent to
+        public int publish(T msg) { return fanOut(msg); }
+        @SuppressWarnings("unchecked")
+        public boolean subscribe(Address<? super T> subscriber) {
+            if (!add(subscriber)) return false;
+            if (subscriber instanceof Watchable) ((Address<Object>) subscriber).tell(new Watch(watcher));
+            return true;
+        }
+        @SuppressWarnings("unchecked")
+        public boolean unsubscribe(Address<? super T> subscriber) {
+            if (!remove(subscriber)) return false;
+            if (subscriber instanceof Watchable) ((Address<Object>) subscriber).tell(new Unwatch(watcher));
+            return true;
+        }
+        Address<Terminated> terminated(Terminated t) { remove(t.actor()); return watcher; }
+        void deliver(Address<? super T> subscriber, T msg) { subscriber.tell(msg); }
+    }
+
+    // A behavior as a table from message class to handlers (Cases), in place of a switch or a chain of instanceof;
+    // the default handler gets the messages no handler takes.
+    // The table belongs to the Receive: build it once and keep it, rather than a new one on every message
+    final class Receive<T> extends Cases<Behavior<T>> implements Behavior<T> {
+        final Behavior<T> otherwise;
+
+        Receive(List<Case<Behavior<T>>> cases, Behavior<T> otherwise) { super(cases); this.otherwise = otherwise; }
+
+        public static <T> Builder<T> builder() { return new Builder<>(); }
+
+        public Effect<T> apply(T msg) { var handler = handler(msg); return (handler != null ? handler : otherwise).apply(msg); }
+
+        public static final class Builder<T> {
+            final List<Case<Behavior<T>>> cases = new ArrayList<>();
+            Builder() {}
+            public <M extends T> Builder<T> match(Class<M> type, Function<? super M, Effect<T>> handler) { return match(type, null, handler); }
+            @SuppressWarnings("unchecked")
+            public <M extends T> Builder<T> match(Class<M> type, Predicate<? super M> guard, Function<? super M, Effect<T>> handler) {
+                cases.add(new Case<>(type, (Predicate<Object>) guard, msg -> handler.apply(type.cast(msg))));
+                return this;
+            }
+            public Receive<T> orElse(Behavior<T> otherwise) { return new Receive<>(cases, otherwise); }
+            // Unhandled messages throw, as the default case of a switch would
+            public Receive<T> build() { return orElse(msg -> { throw new RuntimeException("Unhandled message " + msg); }); }
+        }
+    }
+
+    // Told to the parent whenever the child's behavior throws; see Supervision
+    record Failed(Address<?> child, Throwable cause, Directive directive) implements Signal {}
+
+    record System(Executor executor, Props props, HashedWheelTimer timer, DeadLetters deadLetters) {
+        public System(Executor executor) { this(executor, Props.Default); }
+        public System(Executor executor, Props props) { this(executor, props, HashedWheelTimer.Shared, new DeadLetters()); }
+
+        // Lifecycle signals are not of the target's message type: the actor intercepts them before its behavior
+        @SuppressWarnings("unchecked")
+        public void stop(Address<?> target) { ((Address<Object>) target).tell(Terminate); }
+        // The watcher is told Terminated when the target stops (immediately, if it already has)
+        @SuppressWarnings("unchecked")
+        public void watch(Address<?> target, Address<? super Terminated> watcher) { ((Address<Object>) target).tell(new Watch(watcher)); }
+        @SuppressWarnings("unchecked")
+        public void unwatch(Address<?> target, Address<? super Terminated> watcher) { ((Address<Object>) target).tell(new Unwatch(watcher)); }
+
+        // Timers deliver through tellNow(): the shared timer thread never waits for room in a mailbox, what does not fit goes to the dead letters
+        public <T> Cancellable scheduleOnce(Address<T> target, T msg, long delay, TimeUnit unit) {
+            return timer.schedule(() -> target.tellNow(msg), unit.toNanos(delay), 0);
+        }
+        public <T> Cancellable scheduleAtFixedRate(Address<T> target, T msg, long initialDelay, long period, TimeUnit unit) {
+            if (period <= 0) throw new IllegalArgumentException("period must be > 0");
+            return timer.schedule(() -> target.tellNow(msg), unit.toNanos(initialDelay), unit.toNanos(period));
+        }
+        // Starting a keyed timer cancels the running one with the same key on the same target; period 0 = single shot
+        public <T> Cancellable startTimer(Object key, Address<T> target, T msg, long delay, long period, TimeUnit unit) {
+            return timer.schedule(new TimerKey(target, key), () -> target.tellNow(msg), unit.toNanos(delay), unit.toNanos(period));
+        }
+        public boolean cancelTimer(Object key, Address<?> target) { return timer.cancel(new TimerKey(target, key)); }
+        record TimerKey(Address<?> target, Object key) {}
+        // Request/response without a per-request actor: the reply completes the future, the shared timer fails it on timeout
+        public <T, R> CompletableFuture<R> ask(Address<T> target, Function<Address<R>, T> request, long timeout, TimeUnit unit) {
+            var ask = new Ask<R>();
+            return ask.send(timer, unit.toNanos(timeout), () -> target.tell(request.apply(ask)));
+        }
+
+        public <T> Address<T> actorOf(Function<Address<T>, Behavior<T>> initial) { return actorOf(initial, props); }
+        public <T> Address<T> actorOf(Function<Address<T>, Behavior<T>> initial, Props props) { return childOf(null, initial, props); }
+        // A pool of `size` routees, all started from `initial`
+        public <T> Router<T> routerOf(Routing<T> routing, int size, Function<Address<T>, Behavior<T>> initial) { return routerOf(routing, size, initial, props); }
+        public <T> Router<T> routerOf(Routing<T> routing, int size, Function<Address<T>, Behavior<T>> initial, Props props) {
+            return new Router<>(this, routing, initial, props).resize(size);
+        }
+        // The parent is told Failed whenever the child's behavior throws, and stops the child when it stops; see Supervision
+        public <T> Address<T> childOf(Address<? super Failed> parent, Function<Address<T>, Behavior<T>> initial) { return childOf(parent, initial, props); }
+        public <T> Address<T> childOf(Address<? super Failed> parent, Function<Address<T>, Behavior<T>> initial, Props props) {
+            abstract class AtomicRunnableAddress<T> implements Address<T>, Watchable, Runnable {
+                AtomicInteger on = new AtomicInteger(0);
+                final ActorTask task = new ActorTask(this); // what the dispatcher runs: never handed out
+                final Set<Address<?>> children = ConcurrentHashMap.newKeySet();
+                volatile boolean stopped;
+            }
+            var addr = new AtomicRunnableAddress<T>() {
+                // Our awesome little mailbox, free of blocking and evil (holds Instrumentation.Sampled wrappers too)
+                @SuppressWarnings("unchecked")
+                final Mailbox<Object> mbox = (Mailbox<Object>) props.mailbox().get();
+                final ConcurrentLinkedQueue<Object> signals = new ConcurrentLinkedQueue<>(); // high-priority lane
+                final Executor dispatcher = props.dispatcher() != null ? props.dispatcher() : executor;
+                final Instrumentation.Probe probe = props.instrumentation() != null ? props.instrumentation().probe(this) : null;
                 Behavior<T> behavior = initial.apply(this);
-                public Address<T> tell(T msg) { mbox.offer(msg); async(); return this; }  // Enqueue the message onto the mailbox and try to schedule for execution
-                // Switch ourselves off, and then see if we should be rescheduled for execution
+                boolean suspended; int restarts; long restartWindow; // supervision state
+                ArrayList<Address<? super Terminated>> watchers;
+                public Address<T> tell(T msg) {  // Enqueue the message onto the mailbox and try to schedule for execution
+                    if (stopped) { deadLetter(msg); return this; }
+                    if (msg instanceof Signal) signals.offer(msg);
+                    // what does not fit goes to the dead letters: overflow never throws into the sender
+                    else if (probe == null ? !mbox.enqueue(msg) : !enqueueSampled(msg)) { deadLetters.publish(this, msg); return this; }
+                    schedule(); return this;
+                }
+                public Address<T> tellNow(T msg) {
+                    if (stopped || msg instanceof Signal) return tell(msg);
+                    if (probe == null ? !mbox.tryEnqueue(msg) : !tryEnqueueSampled(msg)) { deadLetters.publish(this, msg); return this; }
+                    schedule(); return this;
+                }
+                public boolean offer(T msg) {
+                    if (stopped) { deadLetter(msg); return false; }
+                    if (msg instanceof Signal) signals.offer(msg);
+                    else if (probe == null ? !mbox.offer(msg) : !offerSampled(msg)) return false;
+                    schedule(); return true;
+                }
+                { if (probe != null) mbox.onDropped(m -> probe.dropped()); }
+                Object sampled(Object msg) { return probe.sample() ? new Instrumentation.Sampled(msg, java.lang.System.nanoTime()) : msg; }
+                boolean offerSampled(Object msg) { if (!mbox.offer(sampled(msg))) return false; probe.enqueued(); return true; }
+                boolean enqueueSampled(Object msg) { if (!mbox.enqueue(sampled(msg))) return false; probe.enqueued(); return true; }
+                boolean tryEnqueueSampled(Object msg) { if (!mbox.tryEnqueue(sampled(msg))) return false; probe.enqueued(); return true; }
+                void deadLetter(Object msg) {
+                    if (msg instanceof Watch w) w.watcher().tell(new Terminated(this));
+                    else if (msg != Terminate && !(msg instanceof Unwatch)) deadLetters.publish(this, msg);
+                }
+                // Process a batch of messages, switch ourselves off, and then see if we should be rescheduled for execution
+                @SuppressWarnings("unchecked")
                 public void run() {
-                    try { if (on.get() == 1) { T m = mbox.poll(); if (m != null) behavior = behavior.apply(m).apply(behavior); }
-                    } finally { on.set(0); async(); }
+                    try { if (stopped) drain(); else if (on.get() == 1) {
+                        // Drain up to `throughput` messages (or until the deadline expires) per hand-off to the Executor
+                        long deadline = props.throughputDeadlineNanos() > 0 ? java.lang.System.nanoTime() + props.throughputDeadlineNanos() : 0L;
+                        for (int i = 0; i < props.throughput(); i++) {
+                            Object m = signals.poll(); boolean signal = m != null;
+                            if (!signal && !suspended) m = mbox.poll();
+                            if (m == null) break;
+                            try {
+                                // Our own address on the signal lane restarts the actor from its initial behavior
+                                if (signal && m == this) { suspended = false; behavior = initial.apply(this); }
+                                else if (signal && lifecycle(m)) continue;
+                                else if (probe == null) behavior = behavior.apply((T) m).apply(behavior);
+                                else behavior = instrumented(m, signal);
+                                if (behavior == (Object) Stopped) { stop(); break; }
+                            } catch (VirtualMachineError e) { throw e; }
+                            catch (Throwable e) { failed(e); if (stopped) break; }
+                            if (deadline != 0L && java.lang.System.nanoTime() - deadline >= 0) break;
+                        }
+                    }} finally { on.set(0); if (!signals.isEmpty() || ((stopped || !suspended) && !mbox.isEmpty())) schedule(); }
+                }
+                @SuppressWarnings("unchecked")
+                Behavior<T> instrumented(Object m, boolean signal) {
+                    if (!(m instanceof Instrumentation.Sampled s)) {
+                        if (!signal) probe.processed(-1, -1);
+                        return behavior.apply((T) m).apply(behavior);
+                    }
+                    long start = java.lang.System.nanoTime();
+                    try { return behavior.apply((T) s.msg()).apply(behavior); }
+                    finally { probe.processed(start - s.enqueuedNanos(), java.lang.System.nanoTime() - start); }
+                }
+                boolean lifecycle(Object m) {
+                    if (m == Terminate) stop();
+                    else if (m instanceof Watch w) { if (watchers == null) watchers = new ArrayList<>(); watchers.add(w.watcher()); }
+                    else if (m instanceof Unwatch u) { if (watchers != null) watchers.remove(u.watcher()); }
+                    else return false;
+                    return true;
+                }
+                // Stop the children, drop the behavior and the queued messages, tell the watchers: tell() no longer schedules this actor
+                @SuppressWarnings("unchecked")
+                void stop() {
+                    stopped = true;
+                    for (var child : children) ((Address<Object>) child).tell(Terminate);
+                    if (parent instanceof AtomicRunnableAddress<?> p) p.children.remove(this);
+                    behavior = (Behavior<T>) (Behavior<?>) Stopped;
+                    mbox.close();
+                    drain();
+                    if (watchers != null) { for (var w : watchers) w.tell(new Terminated(this)); watchers = null; }
+                    if (probe != null) probe.stopped();
+                }
+                // Producers that raced with stop() may still enqueue and schedule: their messages are drained here too
+                void drain() {
+                    for (Object m; (m = signals.poll()) != null; ) if (m != this) deadLetter(m);
+                    for (Object m; (m = mbox.poll()) != null; ) deadLetter(Instrumentation.unwrap(m));
+                }
+                // Handle the failure in-line, never rethrow into the Executor
+                void failed(Throwable e) {
+                    var supervision = props.supervision();
+                    var directive = supervision.decider().apply(e);
+                    if (directive == Directive.Restart) {
+                        long now = java.lang.System.nanoTime();
+                        if (now - restartWindow > supervision.withinNanos()) { restartWindow = now; restarts = 0; }
+                        if (++restarts > supervision.maxRestarts()) directive = Directive.Stop;
+                    }
+                    if (parent != null) parent.tell(new Failed(this, e, directive)); else Supervision.unsupervised(this, e, directive);
+                    switch (directive) {
+                        case Resume -> {}
+                        case Restart -> {
+                            suspended = true; // Messages wait in the mailbox until the restart signal comes in
+                            long backoff = supervision.backoffNanos(restarts);
+                            if (backoff > 0) timer.schedule(() -> { signals.offer(this); schedule(); }, backoff, 0); else signals.offer(this);
+                        }
+                        case Stop -> stop();
+                    }
                 }
-                // If there's something to process, and we're not already scheduled
-                void async() {
-                    if (!mbox.isEmpty() && on.compareAndSet(0, 1)) {
+                // If we're not already scheduled (only the running actor may check the mailbox for emptiness)
+                void schedule() {
+                    if (on.compareAndSet(0, 1)) {
+                        if (probe != null) probe.scheduled();
                         // Schedule to run on the Executor and back out on failure
-                        try { executor.execute(this); } catch (Throwable t) { on.set(0); throw t; }
+                        try { dispatcher.execute(task); } catch (Throwable t) { on.set(0); throw t; }
                     }
                 }
             };
+            // a child stopped along with its parent, or created after the parent stopped
+            if (parent instanceof AtomicRunnableAddress<?> p) { p.children.add(addr); if (p.stopped) stop(addr); }
+            return addr;
         }
     }
 
@@ -7,46 +7,44 @@ package io.github.evacchi;
 import java.lang.System;
 import java.net.URI;
 import java.net.http.*;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 
 import static io.github.evacchi.Actor.*;
 
 public class Weather {
-    public static void main(String... args) {
-        var w = new Weather();
+    public static void main(String... args) throws InterruptedException {
+        var w = new Weather(args.length);
         for (var a : args) { w.req(a); }
+        // the dispatchers run on daemon threads: wait for the replies before main returns
+        w.pending.await();
     }
 
-    Actor.System system = new Actor.System(Executors.newCachedThreadPool());
-    Address client = system.actorOf(self -> this::httpClient);
+    Weather(int requests) { pending = new CountDownLatch(requests); }
+
+    Actor.System system = new Actor.System(Dispatchers.forkJoin());
+    // the workers block on the HTTP request: run them where blocking is cheap
+    ExecutorService io = Dispatchers.blocking();
+    HttpClient http = HttpClient.newHttpClient();
+    final CountDownLatch pending;
+    Address client = system.routerOf(Routing.smallestMailbox(), 8, self -> this::httpClient, Props.Default.withDispatcher(io));
 
     void req(String arg) {
         client.tell(arg);
     }
     private Effect httpClient(Object msg) {
         if (msg instanceof String city) {
-            system.actorOf(self -> this.httpHandler(self, city));
+            var request = HttpRequest.newBuilder()
+                    .uri(URI.create("https://wttr.in/" + city + "?format=3"))
+                    .build();
+            try { System.out.println(http.send(request, HttpResponse.BodyHandlers.ofString()).body()); }
+            catch (Exception e) { e.printStackTrace(); }
+            finally { pending.countDown(); }
             return Stay;
         } else {
             System.err.println("Bad argument " + msg);
             return Stay;
         }
     }
-    private Behavior httpHandler(Address self, String city) {
-        var client = HttpClient.newHttpClient();
-        var request = HttpRequest.newBuilder()
-                .uri(URI.create("https://wttr.in/" + city + "?format=3"))
-                .build();
-        try {
-            var resp = client.send(request, HttpResponse.BodyHandlers.ofString());
-            self.tell(resp);
-        } catch (Exception e) { self.tell(e); }
-
-        return msg -> switch (msg) {
-            case HttpResponse resp -> { System.out.println(resp.body()); yield Die; }
-            case Exception e -> { e.printStackTrace(); yield Die; }
-            default -> Die;
-        };
-    }
 
 }
@@ -20,42 +20,197 @@ package io.github.evacchi.asyncchat;
 
 import io.github.evacchi.channels.Channels;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import static io.github.evacchi.Actor.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
-interface ChannelActor {
+public interface ChannelActor {
     record LineRead(String payload) {}
     record WriteLine(String payload) {}
+    // Bytes framed once, read-only, for any number of sockets: each one writes from its own duplicate() view
+    record WriteFrame(ByteBuffer frame) {
+        public static WriteFrame line(String payload) {
+            var bytes = payload.getBytes(UTF_8);
+            return new WriteFrame(ByteBuffer.allocate(bytes.length + 1).put(bytes).put((byte) '\n').flip().asReadOnlyBuffer());
+        }
+        public static WriteFrame lengthPrefixed(byte[] payload) {
+            return new WriteFrame(ByteBuffer.allocate(4 + payload.length).putInt(payload.length).put(payload).flip().asReadOnlyBuffer());
+        }
+    }
     record ReadBuffer(String content) {}
+    // told to the parent when the peer does not keep up with our writes, and when it has caught up again
+    record SlowConsumer(Address socket, long bufferedBytes) {}
+    record Writable(Address socket) {}
+    // told to the parent when the connection is lost, and the socket actor stops
+    record Closed(Address socket) {}
+    record WriteCompleted() {}
+    record WriteFailed(Throwable cause) {}
+    record Flush() {}
 
     static Behavior socketHandler(Address self, Address parent, Channels.Socket channel) {
-        return socketHandler(self, parent, channel, "");
+        return socketHandler(self, parent, channel, Framer.lines(1 << 20), WriteOptions.Default);
+    }
+    // Every complete frame in a read is told to the parent as a LineRead; WriteLine is framed the same way
+    static Behavior socketHandler(Address self, Address parent, Channels.Socket channel, Framer framer, WriteOptions options) {
+        return socketHandler(self, parent, channel, framer, new Writer(self, parent, channel, framer, options), new AtomicBoolean());
     }
-    private static Behavior socketHandler(Address self, Address clientManager, Channels.Socket channel, String partial) {
+    private static Behavior socketHandler(Address self, Address parent, Channels.Socket channel, Framer framer, Writer writer, AtomicBoolean closed) {
         channel.read()
                 .thenAccept(s -> self.tell(new ReadBuffer(s)))
-                .exceptionally(err -> { err.printStackTrace(); return null; });
+                .exceptionally(err -> { if (close(self, parent, channel, closed)) self.tell(Terminate); return null; });
 
         return msg -> switch (msg) {
             case ReadBuffer incoming -> {
-                var acc = (partial + incoming.content());
-                var eol = acc.indexOf('\n');
-                if (eol >= 0) {
-                    var line = acc.substring(0, eol);
-                    clientManager.tell(new LineRead(line));
-                    var rest = incoming.content().substring(Math.min(eol + 2, incoming.content().length()));
-                    yield Become(socketHandler(self, clientManager, channel, rest));
-                } else {
-                    var rest = partial + incoming.content();
-                    yield Become(socketHandler(self, clientManager, channel, rest));
-                }
-            }
-            case WriteLine line -> {
-                channel.write((line.payload() + '\n').getBytes(StandardCharsets.UTF_8));
-                yield Stay;
+                framer.append(incoming.content());
+                try { framer.frames(frame -> parent.tell(new LineRead(Framer.string(frame)))); }
+                catch (IllegalStateException e) { close(self, parent, channel, closed); yield Die; } // the peer broke the framing: no way to resync
+                yield Become(socketHandler(self, parent, channel, framer, writer, closed));
             }
+            case WriteLine line -> { writer.write(line.payload().getBytes(UTF_8)); yield Stay; }
+            case WriteFrame frame -> { writer.write(frame.frame()); yield Stay; }
+            case WriteCompleted c -> { writer.completed(); yield Stay; }
+            case WriteFailed f -> { writer.failed(); close(self, parent, channel, closed); yield Die; }
+            case Flush f -> { writer.flush(); yield Stay; }
             default -> throw new RuntimeException("Unhandled message " + msg);
         };
     }
+
+    // The connection is unusable: close it and tell the parent, before the socket actor stops.
+    // A failed write also fails the pending read: only the first of them tells the parent, and returns true
+    static boolean close(Address self, Address parent, Channels.Socket channel, AtomicBoolean closed) {
+        if (!closed.compareAndSet(false, true)) return false;
+        try { channel.close(); } catch (Exception e) { /* closing anyway */ }
+        parent.tell(new Closed(self));
+        return true;
+    }
+
+    // Incremental framing on one reusable ByteBuffer: append what was read, then take every complete frame.
+    // Frames are handed out as views on the buffer, valid only during the call: nothing is copied.
+    // Delimited frames end with '\n' (a '\r' before it is dropped), and only the bytes not seen yet are scanned;
+    // length-prefixed frames start with their length as a 4-byte big-endian int
+    final class Framer {
+        final boolean lengthPrefixed; final int maxFrame;
+        final CharsetEncoder encoder = UTF_8.newEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(8192); // write mode between calls
+        int scanned; // delimited frames: bytes already searched for the delimiter
+
+        Framer(boolean lengthPrefixed, int maxFrame) { this.lengthPrefixed = lengthPrefixed; this.maxFrame = maxFrame; }
+        public static Framer lines(int maxFrame) { return new Framer(false, maxFrame); }
+        public static Framer lengthPrefixed(int maxFrame) { return new Framer(true, maxFrame); }
+
+        void append(ByteBuffer src) { ensure(src.remaining()); buffer.put(src); }
+        // Channels.Socket.read() decodes to a String: encode it back in place, with no intermediate byte[]
+        void append(CharSequence chars) {
+            var in = CharBuffer.wrap(chars);
+            while (encoder.encode(in, buffer, false).isOverflow()) ensure(Math.max(16, in.remaining()));
+        }
+        int frames(Consumer<ByteBuffer> sink) {
+            int start = 0, end = buffer.position(), count = 0;
+            if (lengthPrefixed) {
+                while (end - start >= 4) {
+                    int length = buffer.getInt(start);
+                    if (length < 0 || length > maxFrame) throw new IllegalStateException("Frame length out of bounds: " + length);
+                    if (end - start - 4 < length) break;
+                    sink.accept(buffer.slice(start + 4, length));
+                    start += 4 + length; count++;
+                }
+            } else {
+                for (int i = scanned; i < end; i++) {
+                    if (buffer.get(i) != '\n') continue;
+                    int length = i > start && buffer.get(i - 1) == '\r' ? i - start - 1 : i - start;
+                    sink.accept(buffer.slice(start, length));
+                    start = i + 1; count++;
+                }
+                if (end - start > maxFrame) throw new IllegalStateException("Frame longer than " + maxFrame + " bytes");
+                scanned = end - start;
+            }
+            buffer.flip().position(start);
+            buffer.compact();
+            return count;
+        }
+        // `out` must have room for payload.length + 4 bytes
+        void frame(byte[] payload, ByteBuffer out) {
+            if (lengthPrefixed) out.putInt(payload.length).put(payload);
+            else out.put(payload).put((byte) '\n');
+        }
+        void ensure(int room) {
+            if (buffer.remaining() >= room) return;
+            int capacity = buffer.capacity();
+            while (capacity - buffer.position() < room) capacity *= 2;
+            buffer = ByteBuffer.allocate(capacity).put(buffer.flip());
+        }
+        static String string(ByteBuffer frame) {
+            return new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), UTF_8);
+        }
+    }
+
+    // flushBytes: write as soon as this many bytes are pending; flushDelayNanos: otherwise wait this long for more (0 = none).
+    // lowWatermark, highWatermark: bounds on the bytes pending or in flight, see SlowConsumer
+    record WriteOptions(int flushBytes, long flushDelayNanos, long lowWatermark, long highWatermark) {
+        public static final WriteOptions Default = new WriteOptions(64 * 1024, 0, 256 * 1024, 1024 * 1024);
+        public WriteOptions {
+            if (lowWatermark > highWatermark) throw new IllegalArgumentException("lowWatermark must be <= highWatermark");
+        }
+    }
+
+    // Coalesces writes: at most one channel.write() in flight, and whatever is written meanwhile goes out in the next one.
+    // Crossing the high watermark tells the parent SlowConsumer once, and going back under the low one tells it Writable.
+    // Only used by the socket actor
+    final class Writer {
+        final Address self, parent; final Channels.Socket channel; final Framer framer; final WriteOptions options;
+        ByteBuffer pending = ByteBuffer.allocate(8192);
+        long inFlight; boolean flushScheduled, slow;
+
+        Writer(Address self, Address parent, Channels.Socket channel, Framer framer, WriteOptions options) {
+            this.self = self; this.parent = parent; this.channel = channel; this.framer = framer; this.options = options;
+        }
+        void write(byte[] payload) {
+            ensure(payload.length + 4);
+            framer.frame(payload, pending);
+            written();
+        }
+        // Already framed: copied as is, without touching the shared buffer's position
+        void write(ByteBuffer frame) {
+            ensure(frame.remaining());
+            pending.put(frame.duplicate());
+            written();
+        }
+        void written() {
+            if (inFlight == 0) {
+                if (options.flushDelayNanos() == 0 || pending.position() >= options.flushBytes()) flush();
+                else if (!flushScheduled) { flushScheduled = true; HashedWheelTimer.Shared.schedule(() -> self.tell(new Flush()), options.flushDelayNanos(), 0); }
+            }
+            if (!slow && buffered() > options.highWatermark()) { slow = true; parent.tell(new SlowConsumer(self, buffered())); }
+        }
+        void flush() {
+            flushScheduled = false;
+            if (inFlight > 0 || pending.position() == 0) return;
+            var bytes = Arrays.copyOf(pending.array(), pending.position());
+            pending.clear();
+            inFlight = bytes.length;
+            channel.write(bytes)
+                    .thenAccept(n -> self.tell(new WriteCompleted()))
+                    .exceptionally(err -> { self.tell(new WriteFailed(err)); return null; });
+        }
+        void completed() {
+            inFlight = 0;
+            flush(); // whatever piled up during the write has waited long enough
+            if (slow && buffered() < options.lowWatermark()) { slow = false; parent.tell(new Writable(self)); }
+        }
+        // The write in flight is lost, and so is what is pending: nothing is buffered anymore
+        void failed() { inFlight = 0; pending.clear(); }
+        long buffered() { return inFlight + pending.position(); }
+        void ensure(int room) {
+            if (pending.remaining() >= room) return;
+            int capacity = pending.capacity();
+            while (capacity - pending.position() < room) capacity *= 2;
+            pending = ByteBuffer.allocate(capacity).put(pending.flip());
+        }
+    }
 }
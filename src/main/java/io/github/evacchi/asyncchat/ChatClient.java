@@ -46,6 +46,8 @@ public interface ChatClient {
 
     Actor.System system = new Actor.System(Executors.newCachedThreadPool());
     String HOST = "localhost"; int PORT = 4444;
+    // thread-safe: one for every behavior, instead of one per clientReady()
+    ObjectMapper mapper = new ObjectMapper();
 
     static void main(String[] args) throws IOException {
         var userName = args[0];
@@ -85,8 +87,6 @@ public interface ChatClient {
     }
 
     static Actor.Behavior clientReady(Address self, Address socket) {
-        var mapper = new ObjectMapper();
-
         return msg -> {
             try {
                 switch (msg) {
@@ -98,6 +98,9 @@ public interface ChatClient {
                         var message = mapper.readValue(lr.payload().trim(), Message.class);
                         out.printf("%s > %s\n", message.user(), message.text());
                     }
+                    case ChannelActor.SlowConsumer sc -> err.println("Server is not keeping up");
+                    case ChannelActor.Writable w -> {}
+                    case ChannelActor.Closed c -> err.println("Disconnected from the server");
                     default -> throw new RuntimeException("Unhandled message " + msg);
                 }
                 return Stay;
@@ -30,7 +30,6 @@ import io.github.evacchi.Actor;
 import io.github.evacchi.channels.Channels;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.concurrent.Executors;
 
 import static io.github.evacchi.Actor.*;
@@ -38,7 +37,6 @@ import static java.lang.System.*;
 
 public interface ChatServer {
     record ClientConnection(Channels.Socket socket) { }
-    record ClientConnected(Address addr) { }
 
     Actor.System system = new Actor.System(Executors.newCachedThreadPool());
     String HOST = "localhost"; int PORT = 4444;
@@ -46,15 +44,15 @@ public interface ChatServer {
     static void main(String... args) throws IOException, InterruptedException {
         var serverSocket = Channels.ServerSocket.open(HOST, PORT);
 
-        var clientManager =
-                system.actorOf(self -> clientManager(self));
+        // every client subscribes to the room: lines are broadcast from the reading client's thread
+        var room = new Topic();
         var serverSocketHandler =
-                system.actorOf(self -> serverSocketHandler(self, clientManager, serverSocket));
+                system.actorOf(self -> serverSocketHandler(self, room, serverSocket));
 
         Thread.currentThread().join();
     }
 
-    static Behavior serverSocketHandler(Address self, Address childrenManager, Channels.ServerSocket serverSocket) {
+    static Behavior serverSocketHandler(Address self, Topic room, Channels.ServerSocket serverSocket) {
         serverSocket.accept()
                 .thenAccept(skt -> self.tell(new ClientConnection(skt)))
                 .exceptionally(exc -> { exc.printStackTrace(); return null; });
@@ -63,25 +61,30 @@ public interface ChatServer {
             case ClientConnection conn -> {
                 out.printf("Client connected at %s\n", conn.socket().remoteAddress());
                 var client =
-                        system.actorOf(ca -> ChannelActor.socketHandler(ca, childrenManager, conn.socket()));
-                childrenManager.tell(new ClientConnected(client));
+                        system.actorOf(ca -> ChannelActor.socketHandler(ca, broadcast(room), conn.socket()));
+                room.subscribe(client);
 
-                yield Become(serverSocketHandler(self, childrenManager, serverSocket));
+                yield Become(serverSocketHandler(self, room, serverSocket));
             }
             default -> throw new RuntimeException("Unhandled message " + msg);
         };
     }
 
-    static Behavior clientManager(Address self) {
-        var clients = new ArrayList<Address>();
+    // the lines read by a client are encoded once and written to all the clients in the room;
+    // a client that does not keep up leaves the room until it has caught up
+    static Address broadcast(Topic room) {
         return msg -> {
             switch (msg) {
-                case ClientConnected cc -> clients.add(cc.addr());
-                case ChannelActor.LineRead lr ->
-                        clients.forEach(client -> client.tell(new ChannelActor.WriteLine(lr.payload())));
+                case ChannelActor.LineRead lr -> room.publish(ChannelActor.WriteFrame.line(lr.payload()));
+                case ChannelActor.SlowConsumer sc -> {
+                    err.printf("Slow client, %d bytes behind: shedding its messages\n", sc.bufferedBytes());
+                    room.unsubscribe(sc.socket());
+                }
+                case ChannelActor.Writable w -> room.subscribe(w.socket());
+                case ChannelActor.Closed c -> out.printf("Client disconnected\n"); // the room drops it when it stops
                 default -> throw new RuntimeException("Unhandled message " + msg);
             }
-            return Stay;
+            return room;
         };
     }
 
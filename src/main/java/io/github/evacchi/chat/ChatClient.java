@@ -21,19 +21,22 @@
 //REPOS mavencentral,jitpack=https://jitpack.io/
 //DEPS com.github.evacchi:min-java-actors:main-SNAPSHOT
 //DEPS com.fasterxml.jackson.core:jackson-databind:2.13.0
+//SOURCES EventLoop.java Codec.java
 
 package io.github.evacchi.chat;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.evacchi.Actor;
+import io.github.evacchi.chat.Codec.Message;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.concurrent.*;
 
 import static io.github.evacchi.Actor.*;
+import static io.github.evacchi.chat.EventLoop.*;
 import static java.lang.System.*;
-import static java.util.concurrent.TimeUnit.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public interface ChatClient {
 
@@ -48,56 +51,60 @@ public interface ChatClient {
 
     String host = "localhost";
     int portNumber = 4444;
-    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
     Actor.System sys = new Actor.System(Executors.newCachedThreadPool());
+    EventLoop loop = EventLoop.open(1);
 
     static Object Poll = new Object();
-    record Message(String user, String text) {}
 
+    // ChatClient <user> [json|binary]: the server must use the same codec
     static void main(String[] args) throws IOException {
         var userName = args[0];
+        var codec = Codec.of(args.length > 1 ? args[1] : "json");
 
-        var mapper = new ObjectMapper();
-
-        var socket = new Socket(host, portNumber);
         var userInput = new BufferedReader(new InputStreamReader(in));
-        var socketInput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        var socketOutput = new PrintWriter(socket.getOutputStream(), true);
+
+        // the event loop tells this actor each line or frame the server sends
+        var serverSocketReader = sys.actorOf(self -> msg -> {
+            Message message = switch (msg) {
+                case FrameRead fr -> codec.decode(fr.payload());
+                case LineRead lr -> codec.decode(ByteBuffer.wrap(lr.line().getBytes(UTF_8)));
+                case Closed c -> { exit(0); yield null; }
+                default -> null;
+            };
+            if (message != null) out.printf("%s > %s\n", message.user(), message.text());
+            return Stay;
+        });
+        var connection = loop.connect(new InetSocketAddress(host, portNumber));
+        if (codec.lengthPrefixed()) connection.readFrames(serverSocketReader); else connection.read(serverSocketReader);
 
         out.printf("Login........%s\n", userName);
-        out.printf("Local Port...%d\n", socket.getLocalPort());
-        out.printf("Server.......%s\n", socket.getRemoteSocketAddress());
+        out.printf("Server.......%s\n", connection.remoteAddress());
 
-        var serverOut = sys.actorOf(self -> IO(msg -> {
+        // encoded straight into pooled buffers, which go back to the pool once written
+        var serverOut = sys.actorOf(self -> msg -> {
             if (msg instanceof Message m)
-                socketOutput.println(mapper.writeValueAsString(m));
+                connection.write(codec.encode(m, loop.buffers()::acquire));
             return Stay;
-        }));
+        });
+        // stdin cannot be selected: block on it where blocking is cheap
         var userIn = sys.actorOf(self -> readLine(self,
                 userInput,
-                line -> serverOut.tell(new Message(userName, line))));
-        var serverSocketReader = sys.actorOf(self -> readLine(self,
-                socketInput,
-                line -> {
-                    Message message = mapper.readValue(line, Message.class);
-                    out.printf("%s > %s\n", message.user(), message.text());
-                }));
+                line -> serverOut.tell(new Message(userName, line))),
+                Props.Default.withDispatcher(Dispatchers.blocking()));
     }
 
     static Actor.Behavior readLine(Actor.Address self, BufferedReader in, IOLineReader lineReader) {
-        // schedule a message to self
-        scheduler.schedule(() -> self.tell(Poll), 100, MILLISECONDS);
+        self.tell(Poll);
 
         return IO(msg -> {
             // ignore non-Poll messages
             if (msg != Poll) return Stay;
-            if (in.ready()) {
-                var input = in.readLine();
-                lineReader.read(input);
-            }
-
-            // "stay" in the same state, ensuring that the initializer is re-evaluated
-            return Become(readLine(self, in, lineReader));
+            var input = in.readLine();
+            if (input == null) return Die;
+            lineReader.read(input);
+            // read the next line
+            self.tell(Poll);
+            return Stay;
         });
     }
 }
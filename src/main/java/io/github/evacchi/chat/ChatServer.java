@@ -20,6 +20,7 @@
 //JAVA_OPTIONS  --enable-preview
 //REPOS jitpack=https://jitpack.io/
 //DEPS com.github.evacchi:min-java-actors:main-SNAPSHOT
+//SOURCES EventLoop.java
 
 package io.github.evacchi.chat;
 
@@ -27,108 +28,72 @@ import io.github.evacchi.Actor;
 
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.concurrent.*;
 
 import static io.github.evacchi.Actor.*;
+import static io.github.evacchi.chat.EventLoop.*;
 import static java.lang.System.*;
-import static java.util.concurrent.TimeUnit.*;
 
 public interface ChatServer {
-    interface IOBehavior { Actor.Effect apply(Object msg) throws IOException; }
-    static Actor.Behavior IO(IOBehavior behavior) {
-        return msg -> {
-            try { return behavior.apply(msg); }
-            catch (IOException e) { throw new UncheckedIOException(e); }
-        };
-    }
-    static Object Poll = new Object();
     record ServerMessage(String payload) {}
-    record CreateClient(Socket socket) {}
+    // a length-prefixed frame, relayed as is: every client writes from its own view
+    record ServerFrame(ByteBuffer frame) {}
 
     int portNumber = 4444;
 
     Actor.System sys = new Actor.System(Executors.newCachedThreadPool());
-    Actor.System io = new Actor.System(Executors.newFixedThreadPool(2));
-    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // one Selector thread accepts, reads and writes all the sockets: actors only hear about complete lines
+    EventLoop loop = EventLoop.open(1);
+    Topic room = new Topic();
 
+    // ChatServer [json|binary]: json relays lines, binary relays length-prefixed frames
     static void main(String... args) throws IOException {
-        var serverSocket = new ServerSocket(portNumber);
-        out.printf("Server started at %s.\n", serverSocket.getLocalSocketAddress());
-
+        boolean frames = args.length > 0 && args[0].equals("binary");
         var clientManager =
-                sys.actorOf(self -> clientManager(self));
-        var serverSocketHandler =
-                io.actorOf(self -> serverSocketHandler(self, clientManager, serverSocket));
+                sys.actorOf(self -> clientManager(self, frames));
+        loop.listen(new InetSocketAddress(portNumber), clientManager);
+        out.printf("Server started at port %d.\n", portNumber);
     }
 
-    static Behavior clientManager(Address self) {
-        var clients = new ArrayList<Address>();
-        return IO(msg -> {
-            switch (msg) {
-                // create a connection handler and a message handler for that client
-                case CreateClient n -> {
-                    var socket = n.socket();
-                    out.println("accepts : " + socket.getRemoteSocketAddress());
-
-                    var in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    var clientInput =
-                            io.actorOf(me -> clientInput(me, self, in));
-
-                    var writer = new PrintWriter(socket.getOutputStream(), true);
-                    var clientOutput =
-                            sys.actorOf(client -> clientOutput(writer));
-
-                    clients.add(clientOutput);
-                    return Stay;
-                }
-                // broadcast the message to all connected clients
-                case ServerMessage m -> {
-                    clients.forEach(c -> c.tell(m));
-                    return Stay;
-                }
-                // ignore all other messages
-                default -> {
-                    return Stay;
-                }
+    static Behavior clientManager(Address self, boolean frames) {
+        return msg -> {
+            // create a handler for each client, and subscribe it to the room
+            if (msg instanceof Accepted a) {
+                var connection = a.connection();
+                out.println("accepts : " + connection.remoteAddress());
+                var client = sys.actorOf(me -> new Client(connection));
+                room.subscribe(client);
+                if (frames) connection.readFrames(client); else connection.read(client);
             }
-        });
-    }
-
-    static Behavior serverSocketHandler(Address self, Address clientManager, ServerSocket serverSocket) {
-        scheduler.schedule(() -> self.tell(Poll), 1000, MILLISECONDS);
-        return IO(msg -> {
-            if (msg != Poll) return Stay;
-            var socket = serverSocket.accept();
-            clientManager.tell(new CreateClient(socket));
-            return Become(serverSocketHandler(self, clientManager, serverSocket));
-        });
+            // ignore all other messages
+            return Stay;
+        };
     }
 
-    static Behavior clientInput(Address self, Address clientManager, BufferedReader in) {
-        // schedule a message to self
-        scheduler.schedule(() -> self.tell(Poll), 100, MILLISECONDS);
-
-        return IO(msg -> {
-            // ignore non-Poll messages
-            if (msg != Poll) return Stay;
-            if (in.ready()) {
-                var m = in.readLine();
+    // one table for all the clients, built once: each message type goes straight to its handler
+    Receive clientMessages = Receive.builder()
+            .match(LineRead.class, lr -> {
                 // log message to stdout
-                out.println(m);
-                // broadcast to all other clients
-                clientManager.tell(new ServerMessage(m));
-            }
-
-            // "stay" in the same state, ensuring that the initializer is re-evaluated
-            return Become(clientInput(self, clientManager, in));
-        });
-    }
-
-    static Behavior clientOutput(PrintWriter writer) {
-        return msg -> {
-            if (msg instanceof ServerMessage m) writer.println(m.payload());
-            return Stay;
-        };
+                out.println(lr.line());
+                // broadcast to all clients, straight from this thread
+                room.publish(new ServerMessage(lr.line()));
+                return Stay;
+            })
+            .match(FrameRead.class, fr -> { room.publish(new ServerFrame(fr.frame())); return Stay; })
+            // the room drops stopped clients
+            .match(Closed.class, c -> Die)
+            .orElse(msg -> Stay);
+
+    // a client's only state is its connection, where the room's messages go out;
+    // a client that does not keep up loses lines instead of growing the heap
+    record Client(Connection connection) implements Behavior {
+        public Effect apply(Object msg) {
+            return switch (msg) {
+                case ServerMessage m -> { connection.write(m.payload()); yield Stay; }
+                case ServerFrame f -> { connection.write(f.frame().duplicate()); yield Stay; }
+                default -> clientMessages.apply(msg);
+            };
+        }
     }
 }
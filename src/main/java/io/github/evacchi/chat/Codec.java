@@ -0,0 +1,121 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+//REPOS mavencentral
+//DEPS com.fasterxml.jackson.core:jackson-databind:2.13.0
+
+package io.github.evacchi.chat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// How a chat Message goes on the wire.
+// encode() asks `buffers` for room and returns the whole frame, ready to be written;
+// decode() gets the payload of one frame: a JSON line, or a length-prefixed frame without its prefix
+public interface Codec {
+    record Message(String user, String text) {}
+
+    ByteBuffer encode(Message message, IntFunction<ByteBuffer> buffers);
+    Message decode(ByteBuffer payload);
+    boolean lengthPrefixed();
+
+    // One JSON object per line, as the chat always did
+    static Codec json() { return Json.Instance; }
+    // [int frame length][short user length][user][text], strings in UTF-8
+    static Codec binary() { return Binary.Instance; }
+    static Codec of(String name) {
+        return switch (name) {
+            case "json" -> json();
+            case "binary" -> binary();
+            default -> throw new IllegalArgumentException("Unknown codec " + name);
+        };
+    }
+
+    enum Json implements Codec {
+        Instance;
+        final ObjectMapper mapper = new ObjectMapper(); // thread-safe once configured
+        public ByteBuffer encode(Message message, IntFunction<ByteBuffer> buffers) {
+            try {
+                var bytes = mapper.writeValueAsBytes(message);
+                return buffers.apply(bytes.length + 1).put(bytes).put((byte) '\n').flip();
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+        public Message decode(ByteBuffer payload) {
+            try {
+                if (payload.hasArray())
+                    return mapper.readValue(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), Message.class);
+                var bytes = new byte[payload.remaining()];
+                payload.duplicate().get(bytes);
+                return mapper.readValue(bytes, Message.class);
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+        public boolean lengthPrefixed() { return false; }
+    }
+
+    enum Binary implements Codec {
+        Instance;
+        public ByteBuffer encode(Message message, IntFunction<ByteBuffer> buffers) {
+            var user = message.user(); var text = message.text();
+            // at most 3 bytes per UTF-16 char; the lengths are patched in once known
+            var out = buffers.apply(6 + 3 * (user.length() + text.length()));
+            int start = out.position();
+            out.position(start + 6);
+            utf8(user, out);
+            int userLength = out.position() - start - 6;
+            if (userLength > 0xFFFF) throw new IllegalArgumentException("User name too long");
+            utf8(text, out);
+            out.putInt(start, out.position() - start - 4).putShort(start + 4, (short) userLength);
+            return out.flip();
+        }
+        public Message decode(ByteBuffer payload) {
+            int p = payload.position(), userLength = payload.getShort(p) & 0xFFFF;
+            return new Message(string(payload, p + 2, userLength), string(payload, p + 2 + userLength, payload.limit() - p - 2 - userLength));
+        }
+        public boolean lengthPrefixed() { return true; }
+
+        // Straight into the buffer, without going through a byte[]
+        static void utf8(String s, ByteBuffer out) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) out.put((byte) c);
+                else if (c < 0x800) out.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+                else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                       .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+                }
+                else if (Character.isSurrogate(c)) out.put((byte) '?');
+                else out.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        static String string(ByteBuffer b, int index, int length) {
+            if (b.hasArray()) return new String(b.array(), b.arrayOffset() + index, length, UTF_8);
+            var bytes = new byte[length];
+            b.get(index, bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+//REPOS jitpack=https://jitpack.io/
+//DEPS com.github.evacchi:min-java-actors:main-SNAPSHOT
+
+package io.github.evacchi.chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.evacchi.Actor.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Non-blocking sockets on a few Selector threads. Actors are told about accepted connections, complete lines
+// and closed connections only when they happen: nothing polls. Only the loop threads touch channels and selectors;
+// other threads hand them tasks and wake them up
+public final class EventLoop implements AutoCloseable {
+    public record Accepted(Connection connection) {}
+    public record LineRead(Connection connection, String line) {}
+    // A whole length-prefixed frame, prefix included, so that it can be relayed as is
+    public record FrameRead(Connection connection, ByteBuffer frame) {
+        public ByteBuffer payload() { return frame.slice(frame.position() + 4, frame.remaining() - 4); }
+    }
+    public record Closed(Connection connection) {}
+
+    static final int BUFFER_SIZE = 8192, MAX_LINE = 1 << 20, MAX_PENDING_BYTES = 1 << 20;
+    final BufferPool buffers = new BufferPool(4096, 1024);
+    final Worker[] workers;
+    final AtomicInteger next = new AtomicInteger();
+
+    // For static initializers
+    public static EventLoop open(int threads) {
+        try { return new EventLoop(threads); } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+    public EventLoop(int threads) throws IOException {
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+            new Thread(workers[i], "event-loop-" + i).start();
+        }
+    }
+
+    // Accepted connections are spread over the loop threads; `acceptor` is told Accepted for each one
+    public void listen(InetSocketAddress address, Address acceptor) throws IOException {
+        var server = ServerSocketChannel.open().bind(address);
+        server.configureBlocking(false);
+        var worker = workers[0];
+        worker.execute(() -> register(worker, server, SelectionKey.OP_ACCEPT, acceptor));
+    }
+
+    // Blocks until connected; nothing is read before read() or readFrames()
+    public Connection connect(InetSocketAddress address) throws IOException {
+        return connection(SocketChannel.open(address));
+    }
+
+    // Buffers for outgoing frames: Connection.write() recycles them once written
+    public BufferPool buffers() { return buffers; }
+
+    public void close() { for (var w : workers) { try { w.selector.close(); } catch (IOException ignored) {} } }
+
+    Connection connection(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        var worker = workers[Math.floorMod(next.getAndIncrement(), workers.length)];
+        var connection = new Connection(channel, worker, buffers);
+        worker.execute(() -> connection.key = register(worker, channel, 0, connection));
+        return connection;
+    }
+
+    static SelectionKey register(Worker worker, SelectableChannel channel, int ops, Object attachment) {
+        try { return channel.register(worker.selector, ops, attachment); }
+        catch (ClosedChannelException e) { throw new UncheckedIOException(e); }
+    }
+
+    final class Worker implements Runnable {
+        final Selector selector = Selector.open();
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        Worker() throws IOException {}
+        void execute(Runnable task) { tasks.offer(task); selector.wakeup(); }
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    for (Runnable t; (t = tasks.poll()) != null; ) {
+                        try { t.run(); } catch (RuntimeException e) { e.printStackTrace(); }
+                    }
+                    for (var key : selector.selectedKeys()) {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept((ServerSocketChannel) key.channel(), (Address) key.attachment());
+                        else {
+                            var connection = (Connection) key.attachment();
+                            if (key.isReadable()) connection.readable();
+                            if (key.isValid() && key.isWritable()) connection.flush();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (selector.isOpen()) e.printStackTrace();
+            }
+        }
+        void accept(ServerSocketChannel server, Address acceptor) {
+            try { for (SocketChannel ch; (ch = server.accept()) != null; ) acceptor.tell(new Accepted(connection(ch))); }
+            catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    // Direct buffers of one size, so that writing them does not go through a temporary copy.
+    // Larger requests get a heap buffer, which is not pooled
+    public static final class BufferPool {
+        final int size, max;
+        final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pooled = new AtomicInteger();
+        BufferPool(int size, int max) { this.size = size; this.max = max; }
+        public ByteBuffer acquire(int capacity) {
+            if (capacity > size) return ByteBuffer.allocate(capacity);
+            var b = free.poll();
+            if (b == null) return ByteBuffer.allocateDirect(size);
+            pooled.decrementAndGet();
+            return b.clear();
+        }
+        void release(ByteBuffer b) {
+            if (!b.isDirect() || b.isReadOnly() || b.capacity() != size) return;
+            if (pooled.incrementAndGet() <= max) free.offer(b); else pooled.decrementAndGet();
+        }
+    }
+
+    public static final class Connection {
+        final SocketChannel channel; final Worker worker; final SocketAddress remoteAddress; final BufferPool buffers;
+        final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean flushing = new AtomicBoolean();
+        final AtomicLong pendingBytes = new AtomicLong();
+        // loop thread only
+        SelectionKey key; Address reader; boolean frames; ByteBuffer incoming = ByteBuffer.allocate(BUFFER_SIZE);
+        int scanned; // lines: bytes of the partial line already searched for '\n'
+
+        Connection(SocketChannel channel, Worker worker, BufferPool buffers) throws IOException {
+            this.channel = channel; this.worker = worker; this.buffers = buffers; this.remoteAddress = channel.getRemoteAddress();
+        }
+        public SocketAddress remoteAddress() { return remoteAddress; }
+
+        // Start telling `reader` the incoming lines (LineRead) or length-prefixed frames (FrameRead)
+        public void read(Address reader) { read(reader, false); }
+        public void readFrames(Address reader) { read(reader, true); }
+        void read(Address reader, boolean frames) {
+            worker.execute(() -> {
+                this.reader = reader; this.frames = frames; this.scanned = 0;
+                if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            });
+        }
+
+        // Thread-safe. Returns false, dropping the line, when the peer does not keep up
+        // and more than MAX_PENDING_BYTES are still waiting to be written
+        public boolean write(String line) { return write(ByteBuffer.wrap((line + '\n').getBytes(UTF_8))); }
+        // Writes what remains in `frame`, which then belongs to the connection: a buffer from buffers() is recycled.
+        // A duplicate() of a shared frame is fine too
+        public boolean write(ByteBuffer frame) {
+            int length = frame.remaining();
+            if (pendingBytes.addAndGet(length) > MAX_PENDING_BYTES) { pendingBytes.addAndGet(-length); buffers.release(frame); return false; }
+            outgoing.offer(frame);
+            if (flushing.compareAndSet(false, true)) worker.execute(this::flush);
+            return true;
+        }
+
+        public void close() { worker.execute(this::closed); }
+
+        void readable() {
+            try {
+                if (channel.read(incoming) < 0) { closed(); return; }
+                // tell every complete line or frame in the buffer, keep the trailing partial one
+                byte[] bytes = incoming.array();
+                int start = 0, end = incoming.position();
+                if (frames) while (end - start >= 4) {
+                    int len = incoming.getInt(start);
+                    if (len < 0 || len > MAX_LINE) throw new IOException("Bad frame length " + len + " from " + remoteAddress);
+                    if (end - start - 4 < len) break;
+                    reader.tell(new FrameRead(this, ByteBuffer.wrap(Arrays.copyOfRange(bytes, start, start + 4 + len))));
+                    start += 4 + len;
+                }
+                else {
+                    for (int i = scanned; i < end; i++) {
+                        if (bytes[i] != '\n') continue;
+                        int len = i > start && bytes[i - 1] == '\r' ? i - start - 1 : i - start;
+                        reader.tell(new LineRead(this, new String(bytes, start, len, UTF_8)));
+                        start = i + 1;
+                    }
+                    scanned = end - start;
+                }
+                incoming.flip().position(start);
+                incoming.compact();
+                if (!incoming.hasRemaining()) {
+                    if (incoming.capacity() > MAX_LINE) throw new IOException("Line too long from " + remoteAddress);
+                    incoming = ByteBuffer.allocate(incoming.capacity() * 2).put(incoming.flip());
+                }
+            } catch (IOException e) { closed(); }
+        }
+
+        void flush() {
+            if (!channel.isOpen()) return;
+            try {
+                for (ByteBuffer b; (b = outgoing.peek()) != null; ) {
+                    pendingBytes.addAndGet(-channel.write(b));
+                    // the socket buffer is full: wait until it is writable again
+                    if (b.hasRemaining()) { key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); return; }
+                    buffers.release(outgoing.poll());
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                flushing.set(false);
+                // a writer may have enqueued after the loop, but before flushing was reset
+                if (!outgoing.isEmpty() && flushing.compareAndSet(false, true)) flush();
+            } catch (IOException e) { closed(); }
+        }
+
+        void closed() {
+            if (!channel.isOpen()) return;
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            if (reader != null) reader.tell(new Closed(this));
+        }
+    }
+}
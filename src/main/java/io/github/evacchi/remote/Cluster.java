@@ -0,0 +1,113 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+//REPOS jitpack=https://jitpack.io/
+//DEPS com.github.evacchi:java-async-channels:main-SNAPSHOT
+//DEPS com.github.evacchi:min-java-actors:main-SNAPSHOT
+//SOURCES Remote.java
+
+package io.github.evacchi.remote;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.evacchi.Actor.*;
+
+// Membership: the nodes heard from lately. Every node sends a heartbeat to the nodes it knows of, starting from the seeds,
+// along with the members it sees: this is how a node that joins through a seed gets to know, and be known by, all the others.
+// A node not heard from for `failureTimeout` is not a member any more; one not heard from for much longer is forgotten,
+// unless it is a seed. Subscribers are told Members when they subscribe, and on every change.
+// The remote's serializer must allow the classes of io.github.evacchi.remote.*, which heartbeats and sharding use
+public final class Cluster {
+    public record Members(SortedSet<String> nodes) {}
+    record Subscribe(Address subscriber) {}
+    record Heartbeat(String from, TreeSet<String> members) implements Serializable {}
+    record Tick() {}
+
+    static final String Name = "cluster";
+
+    final Remote remote; final Address membership;
+
+    Cluster(Remote remote, Address membership) { this.remote = remote; this.membership = membership; }
+
+    // seeds are "host:port"; a node may list itself
+    public static Cluster join(Remote remote, Collection<String> seeds) { return join(remote, seeds, 1, 5, TimeUnit.SECONDS); }
+    public static Cluster join(Remote remote, Collection<String> seeds, long heartbeat, long failureTimeout, TimeUnit unit) {
+        var system = remote.system;
+        var membership = system.actorOf(self -> new Membership(remote, Set.copyOf(seeds), unit.toNanos(failureTimeout)));
+        remote.register(Name, membership);
+        system.scheduleAtFixedRate(membership, new Tick(), 0, heartbeat, unit);
+        return new Cluster(remote, membership);
+    }
+
+    public Remote remote() { return remote; }
+    public String node() { return remote.node(); }
+    public Cluster subscribe(Address subscriber) { membership.tell(new Subscribe(subscriber)); return this; }
+
+    static final class Membership implements Behavior {
+        final Remote remote; final Set<String> seeds; final long failureNanos;
+        final Map<String, Long> heard = new HashMap<>(); // when each known node was last heard from
+        final Topic subscribers = new Topic();
+        SortedSet<String> members;
+
+        Membership(Remote remote, Set<String> seeds, long failureNanos) {
+            this.remote = remote; this.seeds = seeds; this.failureNanos = failureNanos;
+            this.members = Collections.unmodifiableSortedSet(new TreeSet<>(Set.of(remote.node())));
+            for (var seed : seeds) known(seed);
+        }
+
+        public Effect apply(Object msg) {
+            switch (msg) {
+                case Heartbeat h -> {
+                    heard.put(h.from(), now());
+                    for (var n : h.members()) known(n);
+                    update();
+                }
+                case Tick t -> {
+                    long now = now();
+                    heard.entrySet().removeIf(e -> !seeds.contains(e.getKey()) && now - e.getValue() > 10 * failureNanos);
+                    var heartbeat = new Heartbeat(remote.node(), new TreeSet<>(members));
+                    for (var n : heard.keySet()) remote.addressOf(n + "/" + Name).tell(heartbeat);
+                    update();
+                }
+                case Subscribe s -> {
+                    subscribers.subscribe(s.subscriber());
+                    s.subscriber().tell(new Members(members));
+                }
+                default -> throw new RuntimeException("Unhandled message " + msg);
+            }
+            return Stay;
+        }
+
+        // Known, but not a member until heard from directly
+        void known(String node) { if (!node.equals(remote.node())) heard.putIfAbsent(node, now() - failureNanos); }
+        void update() {
+            long now = now();
+            var current = new TreeSet<String>();
+            current.add(remote.node());
+            heard.forEach((n, t) -> { if (now - t < failureNanos) current.add(n); });
+            if (current.equals(members)) return;
+            members = Collections.unmodifiableSortedSet(current);
+            subscribers.publish(new Members(members));
+        }
+        static long now() { return java.lang.System.nanoTime(); }
+    }
+}
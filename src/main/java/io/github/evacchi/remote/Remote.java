@@ -0,0 +1,258 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+//REPOS jitpack=https://jitpack.io/
+//DEPS com.github.evacchi:java-async-channels:main-SNAPSHOT
+//DEPS com.github.evacchi:min-java-actors:main-SNAPSHOT
+//SOURCES ../asyncchat/ChannelActor.java
+
+package io.github.evacchi.remote;
+
+import io.github.evacchi.Actor;
+import io.github.evacchi.asyncchat.ChannelActor;
+import io.github.evacchi.channels.Channels;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static io.github.evacchi.Actor.*;
+import static java.lang.System.out;
+
+// Location-transparent actors over Channels sockets. A node listens on host:port; actors registered under a name
+// are reachable from other nodes as "host:port/name", through Address proxies that serialize what they are told.
+// Each node dials the others once, and keeps one socket actor per peer: its mailbox is the outbound queue,
+// and ChannelActor coalesces the envelopes queued during a write into the next one.
+// Addresses inside messages travel as paths: local actors that are not registered get a temporary name,
+// dropped when they stop; any other Address (an ask, a lambda) gets a one-shot name, dropped after its first delivery,
+// once the ask completes, or after a lease of LEASE_SECONDS at the latest
+public final class Remote {
+    // Turns messages into bytes and back; `paths` names the Addresses found in a message, `proxies` resolves them
+    public interface Serializer {
+        byte[] serialize(Object msg, Function<Address, String> paths) throws IOException;
+        Object deserialize(byte[] bytes, Function<String, Address> proxies) throws IOException;
+
+        // java.io serialization; Addresses are swapped for their paths on the way out, and for proxies on the way in.
+        // Deserializing runs code of the classes in the stream, and peers are not trusted: besides java.lang, java.util,
+        // java.time and java.math, only the classes matching the `allowed` ObjectInputFilter patterns are read,
+        // e.g. java("com.example.messages.*", "com.example.Order")
+        static Serializer java(String... allowed) {
+            record Ref(String path) implements Serializable {}
+            var filter = allowlist(Ref.class, allowed);
+            return new Serializer() {
+                public byte[] serialize(Object msg, Function<Address, String> paths) throws IOException {
+                    var bytes = new ByteArrayOutputStream();
+                    try (var oos = new ObjectOutputStream(bytes) {
+                        { enableReplaceObject(true); }
+                        protected Object replaceObject(Object obj) { return obj instanceof Address a ? new Ref(paths.apply(a)) : obj; }
+                    }) { oos.writeObject(msg); }
+                    return bytes.toByteArray();
+                }
+                public Object deserialize(byte[] bytes, Function<String, Address> proxies) throws IOException {
+                    try (var ois = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+                        { enableResolveObject(true); }
+                        protected Object resolveObject(Object obj) { return obj instanceof Ref r ? proxies.apply(r.path()) : obj; }
+                    }) { ois.setObjectInputFilter(filter); return ois.readObject(); }
+                    catch (ClassNotFoundException e) { throw new InvalidClassException(e.getMessage()); }
+                }
+            };
+        }
+        // The filter checks the proxies resolveObject() returns as well: Addresses that are not Serializable,
+        // hence that no stream could carry, are let through
+        private static ObjectInputFilter allowlist(Class<?> ref, String... allowed) {
+            var patterns = ObjectInputFilter.Config.createFilter("maxdepth=64;java.lang.*;java.util.*;java.time.*;java.math.*;" + String.join(";", allowed) + ";!*");
+            return info -> {
+                var c = info.serialClass();
+                if (c == ref || (c != null && Address.class.isAssignableFrom(c) && !Serializable.class.isAssignableFrom(c))) return ObjectInputFilter.Status.ALLOWED;
+                return patterns.checkInput(info);
+            };
+        }
+    }
+
+    // An actor on another node
+    public record RemoteAddress(Remote remote, String node, String name) implements Address {
+        public Address tell(Object msg) { remote.send(this, msg); return this; }
+        public String path() { return node + "/" + name; }
+        public String toString() { return path(); }
+    }
+
+    record Connected(Channels.Socket socket) {}
+    record ConnectFailed(Throwable cause) {}
+
+    final Actor.System system; final String node; final Serializer serializer;
+    final ConcurrentHashMap<String, Address> registry = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Address, String> names = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<String, Address> peers = new ConcurrentHashMap<>();
+    final AtomicLong temporaryNames = new AtomicLong();
+    final ConcurrentHashMap<String, Cancellable> leases = new ConcurrentHashMap<>(); // one-shot names
+    static final long LEASE_SECONDS = 60;
+    final Address inbound = this::received;
+
+    Remote(Actor.System system, String host, int port, Serializer serializer) {
+        this.system = system; this.node = host + ":" + port; this.serializer = serializer;
+    }
+
+    // Listens on host:port for envelopes sent by the other nodes
+    public static Remote start(Actor.System system, String host, int port, Serializer serializer) throws IOException {
+        var remote = new Remote(system, host, port, serializer);
+        var server = Channels.ServerSocket.open(host, port);
+        system.actorOf(self -> remote.acceptor(self, server));
+        return remote;
+    }
+
+    public String node() { return node; }
+    public Remote register(String name, Address actor) {
+        registry.put(name, actor);
+        names.put(actor, name);
+        return this;
+    }
+    // "host:port/name": a proxy, or the registered actor itself when it lives on this node
+    public Address addressOf(String path) {
+        int slash = path.indexOf('/');
+        if (slash < 0) throw new IllegalArgumentException("Not a path: " + path);
+        var node = path.substring(0, slash); var name = path.substring(slash + 1);
+        if (!node.equals(this.node)) return new RemoteAddress(this, node, name);
+        var local = registry.get(name);
+        return local != null ? local : new RemoteAddress(this, node, name); // tells end up in the dead letters
+    }
+
+    String pathOf(Address address) {
+        if (address instanceof RemoteAddress r) return r.path();
+        var name = names.get(address);
+        if (name != null) return node + "/" + name;
+        var fresh = "$" + temporaryNames.incrementAndGet();
+        name = names.putIfAbsent(address, fresh);
+        if (name != null) return node + "/" + name;
+        registry.put(fresh, address);
+        if (address instanceof Watchable) address.tell(new Watch(terminated -> { unregister(fresh, address); return address; }));
+        else {
+            leases.put(fresh, system.timer().schedule(() -> release(fresh), TimeUnit.SECONDS.toNanos(LEASE_SECONDS), 0));
+            if (address instanceof CompletableFuture<?> ask) ask.whenComplete((reply, failure) -> release(fresh));
+        }
+        return node + "/" + fresh;
+    }
+    void unregister(String name, Address actor) { registry.remove(name, actor); names.remove(actor, name); }
+    // Drops a one-shot name; false if it was not one, or is gone already
+    boolean release(String name) {
+        var lease = leases.remove(name);
+        if (lease == null) return false;
+        lease.cancel();
+        var target = registry.remove(name);
+        if (target != null) names.remove(target, name);
+        return true;
+    }
+
+    // Envelope: one line, "name base64(payload)"
+    void send(RemoteAddress target, Object msg) {
+        try {
+            var payload = Base64.getEncoder().encodeToString(serializer.serialize(msg, this::pathOf));
+            peers.computeIfAbsent(target.node(), this::connect).tell(new ChannelActor.WriteLine(target.name() + ' ' + payload));
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+    Address received(Object msg) {
+        if (msg instanceof ChannelActor.Closed c) peers.values().remove(c.socket()); // the next send reconnects
+        if (!(msg instanceof ChannelActor.LineRead lr)) return inbound; // SlowConsumer, Writable
+        var line = lr.payload();
+        int space = line.indexOf(' ');
+        if (space < 0) return inbound;
+        var name = line.substring(0, space);
+        try {
+            var decoded = serializer.deserialize(Base64.getDecoder().decode(line.substring(space + 1)), this::addressOf);
+            var target = registry.get(name);
+            release(name);
+            if (target != null) target.tell(decoded); else system.deadLetters().publish(new RemoteAddress(this, node, name), decoded);
+        } catch (IOException | IllegalArgumentException e) { e.printStackTrace(); }
+        return inbound;
+    }
+
+    Behavior acceptor(Address self, Channels.ServerSocket server) {
+        server.accept()
+                .thenAccept(socket -> self.tell(new Connected(socket)))
+                .exceptionally(err -> { err.printStackTrace(); return null; });
+        return msg -> {
+            if (msg instanceof Connected c) {
+                system.actorOf(sa -> ChannelActor.socketHandler(sa, inbound, c.socket()));
+                return Become(acceptor(self, server));
+            }
+            return Stay;
+        };
+    }
+
+    // One outbound socket actor per peer. Until connected it keeps what it is told, in order;
+    // then it becomes a ChannelActor and replays it. If it cannot connect, the next send tries again
+    Address connect(String node) {
+        int colon = node.lastIndexOf(':');
+        return system.actorOf(self -> {
+            try {
+                var socket = Channels.Socket.open();
+                socket.connect(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)))
+                        .thenAccept(skt -> self.tell(new Connected(skt)))
+                        .exceptionally(exc -> { peers.remove(node, self); self.tell(new ConnectFailed(exc)); return null; });
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+            var stash = new ArrayList<Object>();
+            return msg -> {
+                if (msg instanceof ConnectFailed) {
+                    for (var m : stash) system.deadLetters().publish(self, m);
+                    return Die;
+                }
+                if (!(msg instanceof Connected c)) { stash.add(msg); return Stay; }
+                var socketHandler = ChannelActor.socketHandler(self, inbound, c.socket());
+                for (var m : stash) socketHandler = socketHandler.apply(m).apply(socketHandler);
+                return Become(socketHandler);
+            };
+        });
+    }
+
+    // Two nodes on localhost playing ping-pong
+    record Ping(Address replyTo, int count) implements Serializable {}
+    static void main(String... args) throws Exception {
+        var system = new Actor.System(Executors.newCachedThreadPool());
+        var a = Remote.start(system, "localhost", 2552, Serializer.java("io.github.evacchi.remote.Remote$Ping"));
+        var b = Remote.start(system, "localhost", 2553, Serializer.java("io.github.evacchi.remote.Remote$Ping"));
+
+        b.register("ponger", system.actorOf(self -> msg -> {
+            if (msg instanceof Ping p) p.replyTo().tell(new Ping(self, p.count()));
+            return Stay;
+        }));
+
+        int rounds = 10_000;
+        var done = new CountDownLatch(1);
+        var ponger = a.addressOf("localhost:2553/ponger");
+        var pinger = system.actorOf(self -> msg -> {
+            if (msg instanceof Ping p) {
+                if (p.count() == rounds) done.countDown();
+                else ponger.tell(new Ping(self, p.count() + 1));
+            }
+            return Stay;
+        });
+        long start = java.lang.System.nanoTime();
+        pinger.tell(new Ping(ponger, 0));
+        done.await();
+        out.printf("%d round trips in %d ms\n", rounds, (java.lang.System.nanoTime() - start) / 1_000_000);
+        java.lang.System.exit(0);
+    }
+}
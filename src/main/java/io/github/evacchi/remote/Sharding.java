@@ -0,0 +1,225 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+//JAVA 17
+//JAVAC_OPTIONS --enable-preview --release 17
+//JAVA_OPTIONS  --enable-preview
+//REPOS jitpack=https://jitpack.io/
+//DEPS com.github.evacchi:java-async-channels:main-SNAPSHOT
+//DEPS com.github.evacchi:min-java-actors:main-SNAPSHOT
+//SOURCES Remote.java Cluster.java
+
+package io.github.evacchi.remote;
+
+import io.github.evacchi.Actor;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static io.github.evacchi.Actor.*;
+import static java.lang.System.out;
+
+// Entities, one actor per id (a user, a chat room), spread over the members of a Cluster.
+// An id belongs to one of `shards` shards, and a shard to the member with the highest hash(member, shard):
+// consistent hashing without a ring, so that every node places shards the same way,
+// and a membership change only moves the shards of the nodes that came or went.
+// Each node runs a region, which starts the entities of its own shards on their first message and forwards the rest.
+// When a shard moves, the old owner stops its entities once they have processed what they had queued,
+// then tells HandOff to the new owner; both hold the shard's messages meanwhile
+public final class Sharding {
+    public record Envelope(String entityId, Object msg) implements Serializable {}
+    record Forward(Envelope envelope, int hops) implements Serializable {}
+    record HandOff(int shard) implements Serializable {}
+    record HandOffTimeout(int shard) {}
+    record EntityStopped(int shard, String entityId, Address entity) {}
+    record Stop() {}
+
+    static final int MaxHops = 3; // until membership views agree, shards may bounce between nodes: retry later
+
+    final String typeName; final Address region;
+
+    Sharding(String typeName, Address region) { this.typeName = typeName; this.region = region; }
+
+    // entity(id, self) is the initial behavior of the entity `id`
+    public static Sharding start(Cluster cluster, String typeName, int shards, BiFunction<String, Address, Behavior> entity) {
+        return start(cluster, typeName, shards, entity, 5, TimeUnit.SECONDS);
+    }
+    // handOffTimeout: how long a new owner waits for the old one, before starting the shard anyway
+    public static Sharding start(Cluster cluster, String typeName, int shards, BiFunction<String, Address, Behavior> entity,
+                                 long handOffTimeout, TimeUnit unit) {
+        var remote = cluster.remote();
+        var region = remote.system.actorOf(self -> new Region(self, remote, typeName, shards, entity, unit.toNanos(handOffTimeout)));
+        remote.register(regionName(typeName), region);
+        cluster.subscribe(region);
+        return new Sharding(typeName, region);
+    }
+
+    // Like Actor.System.actorOf(), except that the entity starts on its first message, wherever its shard lives
+    public Address actorOf(String entityId) {
+        return new Address() {
+            public Address tell(Object msg) { region.tell(new Envelope(entityId, msg)); return this; }
+            public String toString() { return typeName + "/" + entityId; }
+        };
+    }
+
+    static String regionName(String typeName) { return "sharding/" + typeName; }
+    static long mix(long z) { // splitmix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    static final class Region implements Behavior {
+        final Address self; final Remote remote; final String typeName; final int shards;
+        final BiFunction<String, Address, Behavior> entity; final long handOffNanos;
+        final Map<Integer, Map<String, Address>> entities = new HashMap<>();
+        final Map<Integer, List<Envelope>> held = new HashMap<>(); // shards being handed off, either way
+        final Set<Integer> stopping = new HashSet<>();             // handing off, until their entities have stopped
+        SortedSet<String> members;
+
+        Region(Address self, Remote remote, String typeName, int shards, BiFunction<String, Address, Behavior> entity, long handOffNanos) {
+            this.self = self; this.remote = remote; this.typeName = typeName; this.shards = shards;
+            this.entity = entity; this.handOffNanos = handOffNanos;
+            this.members = new TreeSet<>(Set.of(remote.node()));
+        }
+
+        public Effect apply(Object msg) {
+            switch (msg) {
+                case Envelope e -> route(e, 0);
+                case Forward f -> route(f.envelope(), f.hops());
+                case Cluster.Members m -> rebalance(m.nodes());
+                case HandOff h -> { if (!stopping.contains(h.shard())) release(h.shard()); }
+                case HandOffTimeout t -> { if (!stopping.contains(t.shard())) release(t.shard()); }
+                case EntityStopped s -> {
+                    var running = entities.get(s.shard());
+                    if (running != null && running.remove(s.entityId(), s.entity()) && running.isEmpty()) {
+                        entities.remove(s.shard());
+                        if (stopping.remove(s.shard())) handedOff(s.shard());
+                    }
+                }
+                default -> throw new RuntimeException("Unhandled message " + msg);
+            }
+            return Stay;
+        }
+
+        void route(Envelope e, int hops) {
+            int shard = shardOf(e.entityId());
+            var waiting = held.get(shard);
+            if (waiting != null) { waiting.add(e); return; }
+            var owner = ownerOf(shard, members);
+            if (owner.equals(remote.node())) deliver(shard, e);
+            else if (hops < MaxHops) regionAt(owner).tell(new Forward(e, hops + 1));
+            else remote.system.scheduleOnce(self, e, 100, TimeUnit.MILLISECONDS);
+        }
+
+        void deliver(int shard, Envelope e) {
+            entities.computeIfAbsent(shard, s -> new HashMap<>()).computeIfAbsent(e.entityId(), id -> {
+                var actor = remote.system.actorOf(a -> stoppable(entity.apply(id, a)));
+                actor.tell(new Watch(t -> { self.tell(new EntityStopped(shard, id, actor)); return self; }));
+                return actor;
+            }).tell(e.msg());
+        }
+
+        void rebalance(SortedSet<String> nodes) {
+            var before = members;
+            members = nodes;
+            var node = remote.node();
+            for (int shard = 0; shard < shards; shard++) {
+                var from = ownerOf(shard, before); var to = ownerOf(shard, nodes);
+                if (from.equals(to)) continue;
+                if (from.equals(node)) {
+                    // losing it: stop the entities, then hand off
+                    var running = entities.get(shard);
+                    if (running == null) { regionAt(to).tell(new HandOff(shard)); continue; }
+                    held.putIfAbsent(shard, new ArrayList<>());
+                    stopping.add(shard);
+                    for (var a : running.values()) a.tell(new Stop());
+                } else if (to.equals(node) && nodes.contains(from)) {
+                    // getting it from a live node: wait for its entities to stop
+                    held.putIfAbsent(shard, new ArrayList<>());
+                    remote.system.scheduleOnce(self, new HandOffTimeout(shard), handOffNanos, TimeUnit.NANOSECONDS);
+                } else if (!to.equals(node) && !stopping.contains(shard)) release(shard); // it moved on again
+            }
+        }
+        // The entities of a lost shard have stopped: its new owner can start them
+        void handedOff(int shard) {
+            var owner = ownerOf(shard, members);
+            if (!owner.equals(remote.node())) regionAt(owner).tell(new HandOff(shard));
+            release(shard);
+        }
+        void release(int shard) {
+            var waiting = held.remove(shard);
+            if (waiting != null) for (var e : waiting) route(e, 0);
+        }
+
+        int shardOf(String entityId) { return (int) Math.floorMod(mix(entityId.hashCode()), (long) shards); }
+        static String ownerOf(int shard, SortedSet<String> nodes) {
+            String owner = null; long best = Long.MIN_VALUE;
+            for (var n : nodes) {
+                long h = mix(n.hashCode() * 0x9E3779B97F4A7C15L + shard);
+                if (owner == null || h > best) { owner = n; best = h; }
+            }
+            return owner;
+        }
+        Address regionAt(String node) { return remote.addressOf(node + "/" + regionName(typeName)); }
+
+        // Stop travels behind the messages already queued: the entity processes them before stopping
+        static Behavior stoppable(Behavior behavior) {
+            return msg -> {
+                if (msg instanceof Stop) return Die;
+                var next = behavior.apply(msg).apply(behavior);
+                return next == Stopped ? Die : next == behavior ? Stay : Become(stoppable(next));
+            };
+        }
+    }
+
+    // Sharding <port> [<seed port>...]: run a few on localhost, then type "<id> <text>" on any of them
+    record Count(String text) implements Serializable {}
+    public static void main(String... args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        var seeds = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) seeds.add("localhost:" + args[i]);
+
+        var system = new Actor.System(Executors.newCachedThreadPool());
+        var remote = Remote.start(system, "localhost", port, Remote.Serializer.java("io.github.evacchi.remote.*"));
+        var cluster = Cluster.join(remote, seeds);
+        cluster.subscribe(system.actorOf(self -> msg -> {
+            if (msg instanceof Cluster.Members m) out.printf("Members: %s\n", m.nodes());
+            return Stay;
+        }));
+        var counters = Sharding.start(cluster, "counter", 16, (id, self) -> counter(id, 0, remote.node()));
+
+        var in = new BufferedReader(new InputStreamReader(java.lang.System.in));
+        for (String line; (line = in.readLine()) != null; ) {
+            var parts = line.trim().split(" ", 2);
+            if (parts[0].isEmpty()) continue;
+            counters.actorOf(parts[0]).tell(new Count(parts.length > 1 ? parts[1] : ""));
+        }
+    }
+    static Behavior counter(String id, int count, String node) {
+        return msg -> {
+            if (!(msg instanceof Count c)) return Stay;
+            out.printf("%s #%d on %s: %s\n", id, count + 1, node, c.text());
+            return Become(counter(id, count + 1, node));
+        };
+    }
+}
@@ -27,7 +27,12 @@ public class VendingMachine {
 
     TypedActor.System sys = new TypedActor.System(Executors.newCachedThreadPool());
 
-    Address<VendMessage> vendingMachine = sys.actorOf(self -> initial(self));
+    // The states are created once, and the budget is updated in place: a coin allocates nothing
+    int budget;
+    final Behavior<VendMessage> initial = this::initial, waitCoin = this::waitCoin, vend = this::vend;
+    final Effect<VendMessage> toInitial = Become(initial), toWaitCoin = Become(waitCoin), toVend = Become(vend);
+
+    Address<VendMessage> vendingMachine = sys.actorOf(self -> initial);
     Address<Choice> itemPicker = sys.actorOf(self -> msg -> itemPicker(msg));
 
     public static void main(String... args) {
@@ -38,34 +43,38 @@ public class VendingMachine {
                 .tell(new Choice("Chocolate"));
     }
 
-    Behavior<VendMessage> initial(Address<VendMessage> self) {
-        return message -> {
-            if (message instanceof Coin c) {
-                out.printf("Received first coin: %d\n", c.amount());
-                return Become(waitCoin(self, c.amount()));
-            } else return Stay(); // ignore message, stay in this state
-        };
+    Effect<VendMessage> initial(VendMessage message) {
+        if (message instanceof Coin c) {
+            out.printf("Received first coin: %d\n", c.amount());
+            budget = c.amount();
+            out.printf("Budget updated: %d\n", budget);
+            return toWaitCoin;
+        } else return Stay(); // ignore message, stay in this state
     }
 
-    Behavior<VendMessage> waitCoin(Address<VendMessage> self, int accumulator) {
-        out.printf("Budget updated: %d\n", accumulator);
-        return m -> switch (m) {
-            case Coin c && accumulator + c.amount() < 100 ->
-                    Become(waitCoin(self, accumulator + c.amount()));
-            case Coin c ->
-                    Become(vend(self, accumulator + c.amount()));
+    Effect<VendMessage> waitCoin(VendMessage m) {
+        return switch (m) {
+            case Coin c && budget + c.amount() < 100 -> {
+                budget += c.amount();
+                out.printf("Budget updated: %d\n", budget);
+                yield Stay();
+            }
+            case Coin c -> {
+                budget += c.amount();
+                out.printf("Pick an Item! (Budget: %d)\n", budget);
+                yield toVend;
+            }
             default -> Stay();
         };
     }
-    Behavior<VendMessage> vend(Address<VendMessage> self, int total) {
-        out.printf("Pick an Item! (Budget: %d)\n", total);
-        return message -> switch(message) {
+    Effect<VendMessage> vend(VendMessage message) {
+        return switch(message) {
             case Choice c -> {
                 itemPicker.tell(c);
-                releaseChange(total - 100);
+                releaseChange(budget - 100);
                 yield Stay();
             }
-            case Vended v -> Become(initial(self));
+            case Vended v -> toInitial;
             default -> Stay(); // ignore message, stay in this state
         };
     }
@@ -81,7 +90,7 @@ public class VendingMachine {
     }
 
     void releaseChange(int change) {
-        out.printf("CHANGE: %s\n", %d);
+        out.printf("CHANGE: %d\n", change);
     }
 
 }
@@ -0,0 +1,66 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(30)
+class AskTest {
+    record Get(Actor.Address replyTo) {}
+    record TypedGet(TypedActor.Address<String> replyTo) {}
+
+    @Test
+    void untypedAskCompletesWithTheReplyOnly() throws Exception {
+        var system = new Actor.System(Executors.newCachedThreadPool());
+        // the requester watches the reply address before answering, as a remote proxy would
+        var echo = system.actorOf(self -> msg -> {
+            if (msg instanceof Get g) { g.replyTo().tell(new Actor.Watch(self)).tell(new Actor.Unwatch(self)).tell(Actor.Terminate).tell("reply"); }
+            return Actor.Stay;
+        });
+        assertEquals("reply", system.ask(echo, Get::new, 10, TimeUnit.SECONDS).get());
+    }
+
+    @Test
+    void typedAskCompletesWithTheReplyOnly() throws Exception {
+        var system = new TypedActor.System(Executors.newCachedThreadPool());
+        var echo = system.<TypedGet>actorOf(self -> msg -> {
+            @SuppressWarnings("unchecked")
+            var raw = (TypedActor.Address<Object>) (TypedActor.Address<?>) msg.replyTo();
+            raw.tell(new TypedActor.Watch(null)).tell(TypedActor.Terminate);
+            msg.replyTo().tell("reply");
+            return TypedActor.Stay();
+        });
+        assertEquals("reply", system.ask(echo, TypedGet::new, 10, TimeUnit.SECONDS).get());
+    }
+
+    @Test
+    void askTimesOutWithoutAReply() {
+        var system = new Actor.System(Executors.newCachedThreadPool());
+        var silent = system.actorOf(self -> msg -> Actor.Stay);
+        var failure = assertThrows(ExecutionException.class, () -> system.ask(silent, Get::new, 50, TimeUnit.MILLISECONDS).get());
+        assertInstanceOf(TimeoutException.class, failure.getCause());
+    }
+}
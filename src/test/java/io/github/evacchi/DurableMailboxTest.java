@@ -0,0 +1,155 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi;
+
+import io.github.evacchi.Persistence.Serializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class DurableMailboxTest {
+    static DurableMailbox open(Path dir, int segments, int segmentSize) { return open(dir, segments, segmentSize, new ActorRuntime.DeadLetters()); }
+    static DurableMailbox open(Path dir, int segments, int segmentSize, ActorRuntime.DeadLetters deadLetters) {
+        return DurableMailbox.open(dir, segments, segmentSize, Serializer.java(), 1, TimeUnit.MILLISECONDS, deadLetters);
+    }
+
+    @Test
+    void deliversInOrder(@TempDir Path dir) {
+        var q = open(dir, 4, 4096);
+        assertTrue(q.isEmpty());
+        for (int i = 0; i < 10; i++) assertTrue(q.offer("m" + i));
+        for (int i = 0; i < 10; i++) { assertFalse(q.isEmpty()); assertEquals("m" + i, q.poll()); }
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+        q.close();
+    }
+
+    @Test
+    void reopeningResumesAfterWhatWasPolled(@TempDir Path dir) {
+        var q = open(dir, 4, 4096);
+        for (int i = 0; i < 10; i++) q.offer("m" + i);
+        for (int i = 0; i < 3; i++) assertEquals("m" + i, q.poll());
+        q.close();
+        assertFalse(q.offer("late"), "closed");
+
+        q = open(dir, 4, 4096);
+        for (int i = 3; i < 10; i++) assertEquals("m" + i, q.poll());
+        assertNull(q.poll());
+        q.close();
+
+        q = open(dir, 4, 4096);
+        assertTrue(q.isEmpty(), "everything was processed");
+        q.close();
+    }
+
+    @Test
+    void directoryCannotBeOpenedTwice(@TempDir Path dir) {
+        var q = open(dir, 2, 1024);
+        assertThrows(RuntimeException.class, () -> open(dir, 2, 1024));
+        q.close();
+        open(dir, 2, 1024).close();
+    }
+
+    @Test
+    void offerFailsWhenTheConsumerIsARingBehind(@TempDir Path dir) {
+        var q = open(dir, 2, 1024);
+        int offered = 0;
+        while (q.offer("m" + offered)) offered++;
+        assertTrue(offered > 1024 / 32, "fills more than a segment: " + offered);
+        assertEquals("m0", q.poll());
+        assertFalse(q.offer("m" + offered), "the first segment still holds messages not processed");
+        for (int i = 1; i < offered; i++) assertEquals("m" + i, q.poll());
+        assertNull(q.poll());
+        assertTrue(q.offer("m" + offered), "room again");
+        assertEquals("m" + offered, q.poll());
+        q.close();
+    }
+
+    @Test
+    void wrapsAroundTheRingAcrossReopens(@TempDir Path dir) {
+        var received = new ArrayList<String>();
+        int sent = 0;
+        for (int reopen = 0; reopen < 20; reopen++) {
+            var q = open(dir, 3, 512);
+            for (int i = 0; i < 50; i++) {
+                if (q.offer("m" + sent)) sent++;
+                if (i % 3 == 0 && q.poll() instanceof String m) received.add(m);
+            }
+            q.close();
+        }
+        var q = open(dir, 3, 512);
+        for (Object m; (m = q.poll()) != null; ) received.add((String) m);
+        q.close();
+        var expected = new ArrayList<String>();
+        for (int i = 0; i < sent; i++) expected.add("m" + i);
+        assertEquals(expected, received);
+        assertTrue(sent > 3 * 512 / 16, "several laps: " + sent);
+    }
+
+    record Unexpected(String payload) implements Serializable {}
+
+    @Test
+    void onlyAllowedClassesAreDeserialized(@TempDir Path dir) {
+        var deadLetters = new ActorRuntime.DeadLetters();
+        var q = open(dir, 2, 1024, deadLetters);
+        assertTrue(q.offer(new Unexpected("not in the allowlist")));
+        assertTrue(q.offer("next"));
+        assertEquals("next", q.poll(), "skipped");
+        assertEquals(1, deadLetters.count(), "sent to the dead letters");
+        q.close();
+        q = DurableMailbox.open(dir, 2, 1024, Serializer.java("io.github.evacchi.DurableMailboxTest$Unexpected"), 1, TimeUnit.MILLISECONDS, deadLetters);
+        assertTrue(q.offer(new Unexpected("allowed")));
+        assertEquals(new Unexpected("allowed"), q.poll());
+        q.close();
+    }
+
+    @Test
+    void messagesLargerThanASegmentAreRejected(@TempDir Path dir) {
+        var q = open(dir, 2, 1024);
+        assertFalse(q.offer("x".repeat(2048)));
+        assertTrue(q.isEmpty());
+        q.close();
+    }
+
+    @Test
+    void tellSendsWhatCannotBeWrittenToTheDeadLetters(@TempDir Path dir) throws Exception {
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var system = new Actor.System(executor);
+            var received = new LinkedBlockingQueue<Object>();
+            var actor = system.actorOf(self -> msg -> { received.add(msg); return Actor.Stay; },
+                    Actor.Props.Default.withMailbox(() -> open(dir, 2, 1024, system.deadLetters())));
+            actor.tell(new Object());         // not serializable
+            actor.tell("x".repeat(2048));     // larger than a segment
+            actor.tell("next");
+            assertEquals("next", received.poll(10, TimeUnit.SECONDS), "the sender went on");
+            assertEquals(2, system.deadLetters().count());
+            system.stop(actor);
+        } finally { executor.shutdownNow(); }
+    }
+}
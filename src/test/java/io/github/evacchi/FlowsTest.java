@@ -0,0 +1,145 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi;
+
+import io.github.evacchi.Flows.ActorPublisher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.evacchi.TypedActor.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class FlowsTest {
+    final TypedActor.System system = new TypedActor.System(Executors.newCachedThreadPool());
+
+    sealed interface Numbers {}
+    record Item(int n) implements Numbers {}
+    record End() implements Numbers {}
+    record Failure(Throwable cause) implements Numbers {}
+    record More() {}
+
+    // Collects the items, and completes with them on End or exceptionally on Failure. Each item waits for the gate
+    static Behavior<Numbers> collect(List<Integer> items, CompletableFuture<List<Integer>> done, CountDownLatch gate) {
+        return collect(items, done, gate, new CountDownLatch(1));
+    }
+    static Behavior<Numbers> collect(List<Integer> items, CompletableFuture<List<Integer>> done, CountDownLatch gate, CountDownLatch busy) {
+        return msg -> {
+            switch (msg) {
+                case Item i -> { busy.countDown(); await(gate); items.add(i.n()); }
+                case End e -> done.complete(items);
+                case Failure f -> done.completeExceptionally(f.cause());
+            }
+            return Stay();
+        };
+    }
+    static void await(CountDownLatch gate) { try { gate.await(); } catch (InterruptedException e) { throw new RuntimeException(e); } }
+
+    @Test
+    void subscriberReceivesEverythingThenCompletion() throws Exception {
+        var done = new CompletableFuture<List<Integer>>();
+        var subscriber = Flows.<Numbers>subscriber(system, self -> collect(new ArrayList<>(), done, new CountDownLatch(0)), 8, new End(), Failure::new);
+        try (var publisher = new SubmissionPublisher<Numbers>()) {
+            publisher.subscribe(subscriber);
+            for (int i = 0; i < 10_000; i++) publisher.submit(new Item(i));
+        }
+        var items = done.get(30, TimeUnit.SECONDS);
+        assertEquals(10_000, items.size());
+        for (int i = 0; i < items.size(); i++) assertEquals(i, items.get(i));
+    }
+
+    @Test
+    void subscriberRequestsNoMoreThanItsCapacity() throws Exception {
+        var requested = new AtomicLong();
+        var gate = new CountDownLatch(1);
+        var done = new CompletableFuture<List<Integer>>();
+        var subscriber = Flows.<Numbers>subscriber(system, self -> collect(new ArrayList<>(), done, gate), 8, new End(), Failure::new);
+        subscriber.onSubscribe(new Flow.Subscription() {
+            public void request(long n) { requested.addAndGet(n); }
+            public void cancel() {}
+        });
+        assertEquals(8, requested.get());
+        for (int i = 0; i < 8; i++) subscriber.onNext(new Item(i));
+        Thread.sleep(50); // the actor is stuck on the first item
+        assertEquals(8, requested.get());
+        gate.countDown();
+        while (requested.get() < 16) Thread.sleep(1); // what was taken out is requested again
+        for (int i = 8; i < 16; i++) subscriber.onNext(new Item(i));
+        subscriber.onError(new IllegalStateException("boom"));
+        var failure = assertThrows(Exception.class, () -> done.get(30, TimeUnit.SECONDS));
+        assertEquals("boom", failure.getCause().getMessage());
+        assertTrue(requested.get() <= 16 + 8, "demand beyond what was delivered stays within the capacity");
+    }
+
+    @Test
+    void publisherIsBoundedByDemand() throws Exception {
+        var done = new CompletableFuture<List<Integer>>();
+        var gate = new CountDownLatch(1);
+        var busy = new CountDownLatch(1);
+        var more = new CountDownLatch(1);
+        var producer = system.<More>actorOf(self -> msg -> { more.countDown(); return Stay(); });
+        ActorPublisher<Numbers> publisher = Flows.publisher(4, producer, new More());
+        publisher.subscribe(Flows.<Numbers>subscriber(system, self -> collect(new ArrayList<>(), done, gate, busy), 2, new End(), Failure::new));
+        assertTrue(publisher.offer(new Item(0)));
+        assertTrue(busy.await(10, TimeUnit.SECONDS));
+        int offered = 1;
+        while (publisher.offer(new Item(offered))) offered++;
+        // 2 requested by the subscriber, 1 more once it took the first item out of its mailbox, 4 in the buffer
+        assertEquals(7, offered);
+        assertThrows(IllegalStateException.class, () -> publisher.tell(new Item(-1)));
+        gate.countDown();
+        assertTrue(more.await(10, TimeUnit.SECONDS), "the producer is told there is room again");
+        publisher.complete();
+        assertFalse(publisher.offer(new Item(-1)), "completed");
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6), done.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void publisherAcceptsOneSubscriberOnly() throws Exception {
+        var publisher = Flows.<Numbers, More>publisher(4, system.<More>actorOf(self -> msg -> Stay()), new More());
+        publisher.subscribe(Flows.<Numbers>subscriber(system, self -> msg -> Stay(), 2, new End(), Failure::new));
+        var second = new CompletableFuture<List<Integer>>();
+        publisher.subscribe(Flows.<Numbers>subscriber(system, self -> collect(new ArrayList<>(), second, new CountDownLatch(0)), 2, new End(), Failure::new));
+        var failure = assertThrows(Exception.class, () -> second.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, failure.getCause());
+    }
+
+    @Test
+    void nonPositiveRequestFailsTheSubscription() throws Exception {
+        var publisher = Flows.<Numbers, More>publisher(4, system.<More>actorOf(self -> msg -> Stay()), new More());
+        var failure = new CompletableFuture<Throwable>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            public void onSubscribe(Flow.Subscription s) { s.request(0); }
+            public void onNext(Numbers item) { failure.completeExceptionally(new AssertionError("unexpected " + item)); }
+            public void onError(Throwable t) { failure.complete(t); }
+            public void onComplete() { failure.completeExceptionally(new AssertionError("unexpected completion")); }
+        });
+        assertInstanceOf(IllegalArgumentException.class, failure.get(10, TimeUnit.SECONDS));
+        assertFalse(publisher.offer(new Item(0)));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi;
+
+import io.github.evacchi.ActorRuntime.HashedWheelTimer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(30)
+class HashedWheelTimerTest {
+    final HashedWheelTimer timer = new HashedWheelTimer(1, MILLISECONDS, 8); // 8 ms per lap: most delays take several rounds
+
+    @AfterEach
+    void close() { timer.close(); }
+
+    @Test
+    void firesOnceNotBeforeItsDelay() throws Exception {
+        var fired = new CountDownLatch(1);
+        var count = new AtomicInteger();
+        long start = System.nanoTime();
+        var timeouts = new long[1];
+        timer.schedule(() -> { timeouts[0] = System.nanoTime(); count.incrementAndGet(); fired.countDown(); }, MILLISECONDS.toNanos(50), 0);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(timeouts[0] - start >= MILLISECONDS.toNanos(50), "fired early");
+        Thread.sleep(50);
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    void periodicFiresUntilCancelled() throws Exception {
+        var fired = new CountDownLatch(5);
+        var count = new AtomicInteger();
+        var timeout = timer.schedule(() -> { count.incrementAndGet(); fired.countDown(); }, 0, MILLISECONDS.toNanos(5));
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        Thread.sleep(20); // a run already under way may still complete
+        int after = count.get();
+        Thread.sleep(50);
+        assertEquals(after, count.get());
+    }
+
+    @Test
+    void cancelledTimeoutsNeverFire() throws Exception {
+        var count = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) assertTrue(timer.schedule(count::incrementAndGet, MILLISECONDS.toNanos(20 + i % 20), 0).cancel());
+        var done = new CountDownLatch(1);
+        timer.schedule(done::countDown, MILLISECONDS.toNanos(60), 0);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, count.get());
+    }
+
+    @Test
+    void oneShotCannotBeCancelledOnceFired() throws Exception {
+        var fired = new CountDownLatch(1);
+        var timeout = timer.schedule(fired::countDown, 0, 0);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    void keyedTimeoutReplacesThePendingOne() throws Exception {
+        var first = new AtomicInteger();
+        var second = new CountDownLatch(1);
+        var old = timer.schedule("key", first::incrementAndGet, MILLISECONDS.toNanos(30), 0);
+        timer.schedule("key", second::countDown, MILLISECONDS.toNanos(30), 0);
+        assertFalse(old.cancel(), "replaced, hence already cancelled");
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, first.get());
+        assertFalse(timer.cancel("key"), "fired, hence no longer pending");
+    }
+
+    @Test
+    void manyThreadsScheduleConcurrently() throws Exception {
+        int threads = 8, each = 2000;
+        var fired = new CountDownLatch(threads * each);
+        var workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> { for (int i = 0; i < each; i++) timer.schedule(fired::countDown, MILLISECONDS.toNanos(i % 30), 0); });
+            workers[t].start();
+        }
+        for (var w : workers) w.join();
+        assertTrue(fired.await(10, TimeUnit.SECONDS), () -> fired.getCount() + " timeouts never fired");
+    }
+
+    @Test
+    void parksWhileNothingIsPending() throws Exception {
+        var fired = new CountDownLatch(1);
+        timer.schedule(fired::countDown, MILLISECONDS.toNanos(5), 0);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        var worker = timer.worker;
+        for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5); worker.getState() != Thread.State.WAITING; Thread.sleep(1))
+            assertTrue(System.nanoTime() < deadline, "still ticking");
+        var again = new CountDownLatch(1);
+        timer.schedule(again::countDown, MILLISECONDS.toNanos(5), 0);
+        assertTrue(again.await(5, TimeUnit.SECONDS), "woken up by schedule()");
+    }
+
+    @Test
+    void closeStopsTheThread() throws Exception {
+        var count = new AtomicInteger();
+        timer.schedule(count::incrementAndGet, MILLISECONDS.toNanos(50), 0);
+        var worker = timer.worker;
+        timer.close();
+        worker.join(5000);
+        assertFalse(worker.isAlive());
+        assertThrows(IllegalStateException.class, () -> timer.schedule(count::incrementAndGet, 0, 0));
+        Thread.sleep(100);
+        assertEquals(0, count.get());
+        assertThrows(UnsupportedOperationException.class, HashedWheelTimer.Shared::close);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi;
+
+import io.github.evacchi.Persistence.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class JournalTest {
+    static final int SEGMENT = 64 << 10;
+
+    static EventSourced<CoinBox, Inserted, Integer> coinBox(int snapshotEvery) {
+        return new EventSourced<CoinBox, Inserted, Integer>("coin-box", 0,
+                (total, command) -> switch (command) {
+                    case Insert i -> Persist.event(new Inserted(i.amount()));
+                    case Total t -> Persist.<Inserted, Integer>none().thenRun(t.replyTo()::tell);
+                },
+                (total, event) -> total + event.amount()).withSnapshotEvery(snapshotEvery);
+    }
+
+    // Inserts `coins` coins, and returns the total once they are durable
+    static int run(Path dir, int snapshotEvery, int coins) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (var journal = new Journal(dir, SEGMENT, Persistence.Serializer.java("io.github.evacchi.Persistence$Inserted"))) {
+            var system = new TypedActor.System(executor);
+            var box = journal.actorOf(system, coinBox(snapshotEvery));
+            for (int i = 0; i < coins; i++) box.tell(new Insert(1));
+            return system.ask(box, Total::new, 30, TimeUnit.SECONDS).get();
+        } finally { executor.shutdownNow(); }
+    }
+
+    @Test
+    void recoversTheEventsOfThePreviousRun(@TempDir Path dir) throws Exception {
+        assertEquals(1000, run(dir, 0, 1000));
+        assertEquals(1500, run(dir, 0, 500));
+        assertEquals(1500, run(dir, 0, 0));
+    }
+
+    @Test
+    void spillsIntoNewSegments(@TempDir Path dir) throws Exception {
+        int coins = 20_000; // a few hundred kB of events
+        assertEquals(coins, run(dir, 0, coins));
+        try (var files = Files.list(dir)) { assertTrue(files.filter(p -> p.toString().endsWith(".journal")).count() > 1); }
+        assertEquals(coins, run(dir, 0, 0));
+    }
+
+    @Test
+    void dropsTheSegmentsCoveredBySnapshots(@TempDir Path dir) throws Exception {
+        int coins = 20_000;
+        assertEquals(coins, run(dir, 1000, coins));
+        assertFalse(Files.exists(dir.resolve(String.format("%020d.journal", 0))));
+        try (var files = Files.list(dir)) { assertTrue(files.filter(p -> p.toString().endsWith(".journal")).count() <= 2); }
+        assertEquals(coins, run(dir, 1000, 0));
+        assertEquals(coins + 5000, run(dir, 1000, 5000), "appends resume after the dropped segments");
+        assertEquals(coins + 5000, run(dir, 0, 0));
+    }
+
+    @Test
+    void recoversFromTheLatestSnapshot(@TempDir Path dir) throws Exception {
+        assertEquals(25, run(dir, 10, 25));
+        var snapshot = ByteBuffer.wrap(Files.readAllBytes(dir.resolve("coin-box.snapshot")));
+        assertEquals(20, snapshot.getLong(), "seqNr of the latest snapshot");
+        assertEquals(30, run(dir, 10, 5));
+    }
+
+    @Test
+    void aFailedSnapshotLosesNoEvents(@TempDir Path dir) throws Exception {
+        Files.createDirectories(dir.resolve("coin-box.snapshot.tmp")); // where save() writes: no snapshot can be saved
+        assertEquals(25, run(dir, 10, 25));
+        assertFalse(Files.exists(dir.resolve("coin-box.snapshot")));
+        assertEquals(25, run(dir, 10, 0));
+    }
+
+    @Test
+    void aFailedAppendRestartsTheActorFromWhatIsDurable(@TempDir Path dir) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        var notes = new EventSourced<Object, String, Integer>("notes", 0,
+                (count, command) -> command instanceof Total t ? Persist.<String, Integer>none().thenRun(t.replyTo()::tell) : Persist.event((String) command),
+                (count, note) -> count + 1);
+        try (var journal = new Journal(dir, SEGMENT, Persistence.Serializer.java())) {
+            var system = new TypedActor.System(executor);
+            var box = journal.actorOf(system, notes);
+            for (int i = 0; i < 3; i++) box.tell("note");
+            assertEquals(3, system.ask(box, Total::new, 30, TimeUnit.SECONDS).get());
+            box.tell("x".repeat(SEGMENT)); // too large for a segment: the append fails
+            Integer count = null;
+            for (int attempt = 0; count == null && attempt < 30; attempt++) // an ask waiting for the failed append is dropped
+                try { count = system.ask(box, Total::new, 1, TimeUnit.SECONDS).get(); } catch (ExecutionException e) { /* again */ }
+            assertEquals(3, count, "restarted from what is durable");
+            box.tell("note");
+            assertEquals(4, system.ask(box, Total::new, 30, TimeUnit.SECONDS).get());
+        }
+        try (var journal = new Journal(dir, SEGMENT, Persistence.Serializer.java())) {
+            var system = new TypedActor.System(executor);
+            assertEquals(4, system.ask(journal.actorOf(system, notes), Total::new, 30, TimeUnit.SECONDS).get(), "appends went on after the failure");
+        } finally { executor.shutdownNow(); }
+    }
+
+    @Test
+    void aFailedBatchLeavesNothingInTheSegmentsItSpilledInto(@TempDir Path dir) throws Exception {
+        var half = new byte[SEGMENT / 2];
+        try (var journal = new Journal(dir, SEGMENT, Persistence.Serializer.java())) {
+            var gate = new CountDownLatch(1);
+            journal.sync("gate", failure -> { try { gate.await(); } catch (InterruptedException e) { throw new RuntimeException(e); } });
+            // one batch, held back by the gate: the second event starts a new segment, the third is too large
+            journal.append("notes", 1, half);
+            journal.append("notes", 2, half);
+            journal.append("notes", 3, new byte[SEGMENT]);
+            var synced = new CompletableFuture<IOException>();
+            journal.sync("notes", synced::complete);
+            gate.countDown();
+            assertNotNull(synced.get());
+            assertEquals(0, journal.lastSeqNr("notes"));
+            assertFalse(Files.exists(dir.resolve(String.format("%020d.journal", 1))));
+        }
+        try (var journal = new Journal(dir, SEGMENT, Persistence.Serializer.java())) {
+            assertEquals(0, journal.lastSeqNr("notes"), "recovery brings back none of the failed batch");
+            journal.append("notes", 1, half);
+            var synced = new CompletableFuture<IOException>();
+            journal.sync("notes", synced::complete);
+            assertNull(synced.get());
+            assertEquals(1, journal.lastSeqNr("notes"));
+        }
+    }
+
+    @Test
+    void ignoresATornWrite(@TempDir Path dir) throws Exception {
+        assertEquals(100, run(dir, 0, 100));
+        // corrupt the last event, as a crash in the middle of writing it would: recovery stops right before it
+        try (var ch = FileChannel.open(dir.resolve(String.format("%020d.journal", 0)), READ, WRITE)) {
+            var segment = ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT);
+            int p = 0, last = -1;
+            for (int length; (length = segment.getInt(p)) > 0; p += Journal.HEADER + length) last = p;
+            int lastEnd = last + Journal.HEADER + segment.getInt(last);
+            segment.put(lastEnd - 1, (byte) ~segment.get(lastEnd - 1));
+            segment.force();
+        }
+        assertEquals(99, run(dir, 0, 0));
+        assertEquals(100, run(dir, 0, 1), "appends resume where the valid data ends");
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi;
+
+import io.github.evacchi.ActorRuntime.Mailbox;
+import io.github.evacchi.ActorRuntime.Mailbox.Overflow;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class MailboxTest {
+    static final int PRODUCERS = 4, PER_PRODUCER = 200_000;
+
+    record Msg(int producer, int seq) {}
+
+    @Test void mpscKeepsEachProducersOrder() throws Exception { manyProducers(Mailbox::mpsc); }
+    @Test void mpscArrayKeepsEachProducersOrder() throws Exception { manyProducers(() -> Mailbox.mpscArray(64)); }
+    @Test void concurrentLinkedQueueKeepsEachProducersOrder() throws Exception { manyProducers(Mailbox::concurrentLinkedQueue); }
+
+    // Producers race on offer() while one consumer polls: nothing is lost, duplicated or reordered within a producer
+    static void manyProducers(Supplier<Mailbox<Msg>> mailbox) throws Exception {
+        var q = mailbox.get();
+        var start = new CountDownLatch(1);
+        var producers = new ArrayList<Thread>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            int producer = p;
+            var t = new Thread(() -> {
+                try { start.await(); } catch (InterruptedException e) { return; }
+                for (int i = 0; i < PER_PRODUCER; i++) while (!q.offer(new Msg(producer, i))) Thread.yield(); // bounded: retry when full
+            });
+            t.start();
+            producers.add(t);
+        }
+        start.countDown();
+        int[] next = new int[PRODUCERS];
+        for (int received = 0; received < PRODUCERS * PER_PRODUCER; ) {
+            var m = q.poll();
+            if (m == null) { Thread.yield(); continue; } // yielding, as there may be fewer cores than threads
+            assertEquals(next[m.producer()], m.seq(), "order of producer " + m.producer());
+            next[m.producer()]++;
+            received++;
+        }
+        for (var t : producers) t.join();
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+    }
+
+    @Test
+    void mpscCrossesChunks() {
+        Mailbox<Integer> q = Mailbox.mpsc();
+        for (int i = 0; i < 1000; i++) assertTrue(q.offer(i));
+        for (int i = 0; i < 1000; i++) { assertFalse(q.isEmpty()); assertEquals(i, q.poll()); }
+        assertTrue(q.isEmpty());
+        assertNull(q.poll());
+    }
+
+    @Test
+    void mpscArrayIsBoundedAndReusesItsSlots() {
+        Mailbox<Integer> q = Mailbox.mpscArray(3); // rounded up to 4
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 4; i++) assertTrue(q.offer(i));
+            assertFalse(q.offer(4));
+            for (int i = 0; i < 4; i++) assertEquals(i, q.poll());
+            assertTrue(q.isEmpty());
+        }
+        assertThrows(IllegalArgumentException.class, () -> Mailbox.mpscArray(0));
+    }
+
+    @Test
+    void priorityDeliversInComparatorOrder() {
+        Mailbox<Integer> q = Mailbox.priority(Comparator.<Integer>reverseOrder());
+        for (int i : new int[]{3, 1, 4, 1, 5}) q.offer(i);
+        var polled = new ArrayList<Integer>();
+        for (Integer m; (m = q.poll()) != null; ) polled.add(m);
+        assertEquals(List.of(5, 4, 3, 1, 1), polled);
+    }
+
+    @Test
+    void boundedDropNewest() {
+        Mailbox<Integer> q = Mailbox.bounded(2, Overflow.DropNewest);
+        assertTrue(q.offer(1)); assertTrue(q.offer(2)); assertFalse(q.offer(3));
+        assertEquals(1, q.poll());
+        assertTrue(q.offer(4));
+        assertEquals(List.of(2, 4), drain(q));
+    }
+
+    @Test
+    void boundedDropOldest() {
+        Mailbox<Integer> q = Mailbox.bounded(2, Overflow.DropOldest);
+        for (int i = 1; i <= 5; i++) assertTrue(q.offer(i));
+        assertEquals(List.of(4, 5), drain(q));
+    }
+
+    @Test
+    void boundedBlockWaitsForRoom() throws Exception {
+        Mailbox<Integer> q = Mailbox.bounded(1, Overflow.Block, TimeUnit.SECONDS.toNanos(10));
+        assertTrue(q.offer(1));
+        var offered = new CountDownLatch(1);
+        var producer = new Thread(() -> { if (q.offer(2)) offered.countDown(); });
+        producer.start();
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, q.poll());
+        assertTrue(offered.await(10, TimeUnit.SECONDS));
+        assertEquals(2, q.poll());
+        producer.join();
+    }
+
+    @Test
+    void blockNeedsATimeout() {
+        assertThrows(IllegalArgumentException.class, () -> Mailbox.bounded(1, Overflow.Block));
+        assertThrows(IllegalArgumentException.class, () -> Mailbox.bounded(1, Overflow.Block, 0));
+    }
+
+    @Test
+    void onlyRejectAndBlockReportWhatDoesNotFit() {
+        Mailbox<Integer> dropNewest = Mailbox.bounded(1, Overflow.DropNewest), reject = Mailbox.bounded(1, Overflow.Reject),
+                block = Mailbox.bounded(1, Overflow.Block, TimeUnit.MILLISECONDS.toNanos(10));
+        for (var q : List.of(dropNewest, reject, block)) assertTrue(q.enqueue(1));
+        assertTrue(dropNewest.enqueue(2), "dropped silently");
+        assertFalse(reject.enqueue(2));
+        assertFalse(block.enqueue(2));
+    }
+
+    @Test
+    void tellSendsWhatDoesNotFitToTheDeadLetters() throws Exception {
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var system = new Actor.System(executor, Actor.Props.Default.withMailbox(() -> Mailbox.bounded(1, Overflow.Reject)));
+            var busy = new CountDownLatch(1);
+            var release = new CountDownLatch(1);
+            var processed = new CountDownLatch(2);
+            var actor = system.actorOf(self -> msg -> {
+                busy.countDown();
+                try { release.await(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+                processed.countDown();
+                return Actor.Stay;
+            });
+            actor.tell(1);
+            assertTrue(busy.await(10, TimeUnit.SECONDS));
+            actor.tell(2);
+            actor.tell(3); // the mailbox holds 2 already: no exception in the sender
+            assertEquals(1, system.deadLetters().count());
+            release.countDown();
+            assertTrue(processed.await(10, TimeUnit.SECONDS));
+        } finally { executor.shutdownNow(); }
+    }
+
+    @Test
+    void timersNeverWaitForRoomInABlockingMailbox() throws Exception {
+        var executor = Executors.newCachedThreadPool();
+        var timer = new ActorRuntime.HashedWheelTimer();
+        try {
+            var system = new Actor.System(executor, Actor.Props.Default.withMailbox(() -> Mailbox.bounded(1, Overflow.Block, TimeUnit.SECONDS.toNanos(30))),
+                    timer, new ActorRuntime.DeadLetters());
+            var busy = new CountDownLatch(1);
+            var release = new CountDownLatch(1);
+            var actor = system.actorOf(self -> msg -> {
+                busy.countDown();
+                try { release.await(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+                return Actor.Stay;
+            });
+            actor.tell(1);
+            assertTrue(busy.await(10, TimeUnit.SECONDS));
+            actor.tell(2); // the mailbox is full now
+            system.scheduleOnce(actor, 3, 0, TimeUnit.MILLISECONDS);
+            var fired = new CountDownLatch(1);
+            timer.schedule(fired::countDown, TimeUnit.MILLISECONDS.toNanos(50), 0);
+            assertTrue(fired.await(10, TimeUnit.SECONDS), "the timer thread went on");
+            assertEquals(1, system.deadLetters().count());
+            release.countDown();
+        } finally { executor.shutdownNow(); timer.close(); }
+    }
+
+    @Test void metricsDoNotCountWhatDropOldestDropsAsQueued() throws Exception { droppedAreNotQueued(Overflow.DropOldest); }
+    @Test void metricsDoNotCountWhatDropNewestDropsAsQueued() throws Exception { droppedAreNotQueued(Overflow.DropNewest); }
+
+    static void droppedAreNotQueued(Overflow overflow) throws Exception {
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var metrics = new Metrics(1);
+            var system = new Actor.System(executor, Actor.Props.Default.withMailbox(() -> Mailbox.bounded(1, overflow)).withInstrumentation(metrics));
+            var busy = new CountDownLatch(1);
+            var release = new CountDownLatch(1);
+            var processed = new ArrayList<Object>();
+            var actor = system.actorOf(self -> msg -> {
+                busy.countDown();
+                try { release.await(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+                synchronized (processed) { processed.add(msg); }
+                return Actor.Stay;
+            });
+            actor.tell(1);
+            assertTrue(busy.await(10, TimeUnit.SECONDS));
+            for (int i = 2; i <= 4; i++) actor.tell(i); // one fits, two are dropped
+            var stats = metrics.stats(actor);
+            assertEquals(4, stats.enqueued());
+            assertEquals(2, stats.dropped());
+            assertEquals(2, stats.mailboxDepth(), "the one being processed and the one queued");
+            release.countDown();
+            for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); metrics.stats(actor).processed() < 2; Thread.sleep(1))
+                assertTrue(System.nanoTime() < deadline);
+            assertEquals(0, metrics.stats(actor).mailboxDepth());
+            synchronized (processed) { assertEquals(List.of(1, overflow == Overflow.DropOldest ? 4 : 2), processed); }
+        } finally { executor.shutdownNow(); }
+    }
+
+    static <T> List<T> drain(Mailbox<T> q) {
+        var result = new ArrayList<T>();
+        for (T m; (m = q.poll()) != null; ) result.add(m);
+        return result;
+    }
+}
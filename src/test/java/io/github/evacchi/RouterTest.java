@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi;
+
+import io.github.evacchi.ActorRuntime.Routing;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class RouterTest {
+
+    @Test
+    void shrinkingRoutesWhatTheRemovedRouteesHeldToTheOthers() throws Exception {
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var system = new Actor.System(executor);
+            int messages = 100;
+            var release = new CountDownLatch(1);
+            var processed = new CountDownLatch(messages);
+            var router = system.routerOf(Routing.roundRobin(), 4, self -> msg -> {
+                try { release.await(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+                processed.countDown();
+                return Actor.Stay;
+            });
+            for (int i = 0; i < messages; i++) router.tell(i);
+            router.resize(1);
+            assertEquals(1, router.routees().size());
+            release.countDown();
+            assertTrue(processed.await(10, TimeUnit.SECONDS), () -> processed.getCount() + " messages lost");
+            assertEquals(0, system.deadLetters().count());
+        } finally { executor.shutdownNow(); }
+    }
+
+    @Test
+    void watchersOfARouterAreToldWhenTheRouterStops() throws Exception {
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var system = new Actor.System(executor);
+            var terminated = new LinkedBlockingQueue<Object>();
+            Actor.Address watcher = msg -> { if (msg instanceof Actor.Terminated t) terminated.add(t.actor()); return null; };
+            var router = system.routerOf(Routing.roundRobin(), 3, self -> msg -> Actor.Stay);
+            system.watch(router, watcher);
+            router.routees().get(0).address().tell(Actor.Terminate); // a routee stopping is not the router stopping
+            router.tell(Actor.Terminate);
+            assertSame(router, terminated.poll(10, TimeUnit.SECONDS));
+            system.watch(router, watcher);
+            assertSame(router, terminated.poll(10, TimeUnit.SECONDS));
+            assertNull(terminated.poll(100, TimeUnit.MILLISECONDS));
+        } finally { executor.shutdownNow(); }
+    }
+
+    @Test
+    void typedRoutersAnswerWatchThemselves() throws Exception {
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var system = new TypedActor.System(executor);
+            var terminated = new LinkedBlockingQueue<Object>();
+            TypedActor.Address<TypedActor.Terminated> watcher = t -> { terminated.add(t.actor()); return null; };
+            var router = system.<String>routerOf(Routing.roundRobin(), 3, self -> msg -> TypedActor.Stay());
+            system.watch(router, watcher);
+            system.unwatch(router, watcher);
+            system.watch(router, watcher);
+            system.stop(router);
+            assertSame(router, terminated.poll(10, TimeUnit.SECONDS));
+            assertNull(terminated.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(0, router.routees().size());
+        } finally { executor.shutdownNow(); }
+    }
+}
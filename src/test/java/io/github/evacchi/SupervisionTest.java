@@ -0,0 +1,88 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi;
+
+import io.github.evacchi.ActorRuntime.Directive;
+import io.github.evacchi.ActorRuntime.Supervision;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(30)
+class SupervisionTest {
+    final Actor.System system = new Actor.System(Executors.newCachedThreadPool());
+
+    @Test
+    void childrenStopWithTheirParent() throws Exception {
+        var parent = system.actorOf(self -> msg -> Actor.Stay);
+        var child = system.childOf(parent, self -> msg -> Actor.Stay);
+        var grandchild = system.childOf(child, self -> msg -> Actor.Stay);
+        var terminated = new CountDownLatch(3);
+        Actor.Address watcher = msg -> { if (msg instanceof Actor.Terminated) terminated.countDown(); return null; };
+        for (var a : new Actor.Address[]{parent, child, grandchild}) system.watch(a, watcher);
+        system.stop(parent);
+        assertTrue(terminated.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void childOfAStoppedParentStopsAtOnce() throws Exception {
+        var parent = system.actorOf(self -> msg -> Actor.Stay);
+        var parentStopped = new CountDownLatch(1);
+        system.watch(parent, msg -> { parentStopped.countDown(); return null; });
+        system.stop(parent);
+        assertTrue(parentStopped.await(10, TimeUnit.SECONDS));
+        var childStopped = new CountDownLatch(1);
+        system.watch(system.childOf(parent, self -> msg -> Actor.Stay), msg -> { childStopped.countDown(); return null; });
+        assertTrue(childStopped.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void typedChildrenStopWithTheirParent() throws Exception {
+        var typed = new TypedActor.System(Executors.newCachedThreadPool());
+        var parent = typed.<Object>actorOf(self -> msg -> TypedActor.Stay());
+        var child = typed.<String>childOf(parent, self -> msg -> TypedActor.Stay());
+        var terminated = new CountDownLatch(1);
+        typed.watch(child, msg -> { terminated.countDown(); return null; });
+        typed.stop(parent);
+        assertTrue(terminated.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void errorsAreFailuresToo() throws Exception {
+        var failures = new LinkedBlockingQueue<Actor.Failed>();
+        var processed = new LinkedBlockingQueue<Object>();
+        var parent = system.actorOf(self -> msg -> { if (msg instanceof Actor.Failed f) failures.add(f); return Actor.Stay; });
+        var child = system.childOf(parent, self -> msg -> {
+            if (msg.equals("boom")) throw new AssertionError("boom");
+            processed.add(msg);
+            return Actor.Stay;
+        }, system.props().withSupervision(Supervision.Resume));
+        child.tell("boom").tell("next");
+        var failed = failures.poll(10, TimeUnit.SECONDS);
+        assertInstanceOf(AssertionError.class, failed.cause());
+        assertEquals(Directive.Resume, failed.directive());
+        assertEquals(child, failed.child());
+        assertEquals("next", processed.poll(10, TimeUnit.SECONDS), "the child's Props decided to resume");
+    }
+}
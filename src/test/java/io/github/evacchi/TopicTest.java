@@ -0,0 +1,75 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class TopicTest {
+
+    @Test
+    void signalsAreNeverPublished() {
+        var topic = new Actor.Topic();
+        var received = new ArrayList<Object>();
+        Actor.Address subscriber = msg -> { received.add(msg); return null; };
+        Actor.Address watcher = msg -> null;
+        topic.subscribe(subscriber);
+        topic.tell("hello");
+        topic.tell(new Actor.Watch(watcher));
+        topic.tell(new Actor.Unwatch(watcher));
+        topic.tell(Actor.Terminate);
+        assertEquals(0, topic.size(), "Terminate unsubscribes everyone");
+        topic.tell("nobody listens");
+        assertEquals(List.of("hello"), received, "a lambda is not Watchable: it is told neither Watch nor Unwatch");
+    }
+
+    @Test
+    void typedSignalsAreNeverPublished() {
+        var system = new TypedActor.System(Runnable::run);
+        var topic = new TypedActor.Topic<String>();
+        var received = new ArrayList<Object>();
+        TypedActor.Address<Object> subscriber = msg -> { received.add(msg); return null; };
+        topic.subscribe(subscriber);
+        topic.tell("hello");
+        system.watch(topic, t -> null);
+        system.stop(topic);
+        assertEquals(0, topic.size(), "Terminate unsubscribes everyone");
+        topic.tell("nobody listens");
+        assertEquals(List.of("hello"), received, "a lambda is not Watchable: it is told neither Watch nor Unwatch");
+    }
+
+    @Test
+    void subscribersThatStopAreDropped() throws Exception {
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var system = new Actor.System(executor);
+            var topic = new Actor.Topic();
+            var subscriber = system.actorOf(self -> msg -> Actor.Stay);
+            topic.subscribe(subscriber);
+            subscriber.tell(Actor.Terminate);
+            while (topic.size() > 0) Thread.sleep(1); // told Terminated by the subscriber
+        } finally { executor.shutdownNow(); }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one million {@code actorOf} calls. For the untyped system this includes
+ * scheduling the self-address seeding message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class ActorCreationBenchmark {
+    static final int ACTORS = 1_000_000;
+
+    @Param({"untyped", "typed"}) String api;
+    @Param({"cached", "fixed", "forkjoin"}) String executor;
+
+    Harness harness;
+
+    @Setup(Level.Iteration)
+    public void setup() { harness = Harness.of(api, executor, 1); }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() { harness.shutdown(); }
+
+    @Benchmark
+    public void actorOf(Blackhole bh) {
+        Harness.Handler handler = (self, msg) -> {};
+        for (int i = 0; i < ACTORS; i++) bh.consume(harness.spawn(handler));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ping-pong in the steady state, with nothing allocated by the runtime: the two messages are allocated once,
+ * the actors count in place and always {@code Stay}, the mailboxes are {@code Mailbox.mpscArray} rings,
+ * and the ForkJoinPool queues the task each actor allocated once.
+ * <p>
+ * The claim is that narrow: only {@code mpscArray} mailboxes on a ForkJoinPool. The default {@code Mailbox.mpsc}
+ * allocates a chunk every 64 messages, about 10 bytes per round trip; any other executor wraps each scheduling;
+ * and a behavior that returns {@code Become} allocates the effect on every message.
+ * <p>
+ * {@link AllocationTest} checks it in the build, counting 0 bytes on the actors' threads.
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is the number of bytes allocated per round trip, the benchmark's
+ * own latch included. {@link #main} runs it that way, and fails if more than that latch is allocated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class AllocationBenchmark {
+    static final int ROUND_TRIPS = 10_000;
+    // The latch of each invocation (about 100 bytes) is all that is left: a single object per message would be ROUND_TRIPS times more
+    static final double MAX_BYTES_PER_INVOCATION = 256;
+
+    static final Object PING = "ping", PONG = "pong";
+
+    @Param({"untyped", "typed"}) String api;
+
+    Harness harness;
+    Harness.Ref ponger, pinger;
+    int remaining; // pinger only, once the benchmark thread has told the first ping
+    volatile CountDownLatch done;
+
+    @Setup
+    public void setup() {
+        harness = Harness.of(api, "forkjoin", 1, "array");
+        ponger = harness.spawn((self, msg) -> { if (msg == PING) pinger.tell(PONG); });
+        pinger = harness.spawn((self, msg) -> {
+            if (msg != PONG) return;
+            if (--remaining == 0) done.countDown(); else ponger.tell(PING);
+        });
+    }
+
+    @TearDown
+    public void tearDown() { harness.shutdown(); }
+
+    @Benchmark
+    @OperationsPerInvocation(ROUND_TRIPS)
+    public void roundTrip() {
+        remaining = ROUND_TRIPS;
+        var latch = done = new CountDownLatch(1);
+        ponger.tell(PING);
+        Harness.await(latch);
+    }
+
+    public static void main(String... args) throws RunnerException {
+        var results = new Runner(new OptionsBuilder()
+                .include(AllocationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+        for (var result : results) {
+            var api = result.getParams().getParam("api");
+            var norm = result.getSecondaryResults().entrySet().stream()
+                    .filter(e -> e.getKey().endsWith("gc.alloc.rate.norm")).findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No allocation rate for " + api)).getValue();
+            if (norm.getScore() * ROUND_TRIPS > MAX_BYTES_PER_INVOCATION)
+                throw new AssertionError(String.format("%s: %.3f bytes allocated per round trip", api, norm.getScore()));
+            System.out.printf("%s: %.3f bytes allocated per round trip\n", api, norm.getScore());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi.benchmarks;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The claim of {@link AllocationBenchmark}, checked by the build: in the steady state, with {@code Mailbox.mpscArray} mailboxes
+ * on a ForkJoinPool, the actors allocate nothing at all. The bytes are counted per thread, on every thread but this one,
+ * whose latches are the benchmark's, not the runtime's.
+ */
+@Timeout(120)
+class AllocationTest {
+    static final int WARMUP = 300, INVOCATIONS = 100, ATTEMPTS = 3;
+
+    @Test void untypedRoundTripsAllocateNothing() throws Exception { assertNoAllocation("untyped"); }
+    @Test void typedRoundTripsAllocateNothing() throws Exception { assertNoAllocation("typed"); }
+
+    // A runtime that allocates per message does so on every attempt; one attempt at 0 bytes rules out the pool
+    // starting a worker, or a late JIT compilation, in the middle of the others
+    static void assertNoAllocation(String api) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var benchmark = new AllocationBenchmark();
+        benchmark.api = api;
+        benchmark.setup();
+        try {
+            for (int i = 0; i < WARMUP; i++) benchmark.roundTrip();
+            long bytes = Long.MAX_VALUE;
+            for (int attempt = 0; attempt < ATTEMPTS && bytes > 0; attempt++) {
+                long[] ids = threads.getAllThreadIds(), before = threads.getThreadAllocatedBytes(ids);
+                for (int i = 0; i < INVOCATIONS; i++) benchmark.roundTrip();
+                long[] after = threads.getThreadAllocatedBytes(ids);
+                bytes = 0;
+                for (int t = 0; t < ids.length; t++)
+                    if (ids[t] != Thread.currentThread().getId() && before[t] >= 0 && after[t] >= 0) bytes += after[t] - before[t];
+            }
+            assertEquals(0L, bytes, api + ": " + (double) bytes / INVOCATIONS / AllocationBenchmark.ROUND_TRIPS + " bytes per round trip");
+        } finally { benchmark.tearDown(); }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi.benchmarks;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+/**
+ * Runs every benchmark method once per api, on the default executor and on a ForkJoinPool,
+ * so that the build catches a benchmark that no longer works; the measurements are for {@code exec:exec@benchmarks}.
+ */
+@Timeout(120)
+class BenchmarksTest {
+    static final String[] APIS = {"untyped", "typed"}, EXECUTORS = {"cached", "forkjoin"};
+
+    @Test void pingPong() throws Exception { runOnce(PingPongBenchmark.class); }
+    @Test void fanOutFanIn() throws Exception { runOnce(FanOutFanInBenchmark.class); }
+    @Test void tellContention() throws Exception { runOnce(TellContentionBenchmark.class); }
+    @Test void actorCreation() throws Exception { runOnce(ActorCreationBenchmark.class); }
+    @Test void allocation() throws Exception { runOnce(AllocationBenchmark.class); }
+
+    // @Param fields take the first of their values, but api and executor, which take each of those above
+    static void runOnce(Class<?> benchmark) throws Exception {
+        for (var api : APIS) for (var executor : EXECUTORS) {
+            var state = benchmark.getDeclaredConstructor().newInstance();
+            for (var field : benchmark.getDeclaredFields()) {
+                var param = field.getAnnotation(Param.class);
+                if (param == null) continue;
+                var value = switch (field.getName()) {
+                    case "api" -> api;
+                    case "executor" -> executor;
+                    default -> param.value()[0];
+                };
+                field.setAccessible(true);
+                field.set(state, field.getType() == int.class ? (Object) Integer.parseInt(value) : value);
+            }
+            invokeAll(state, Setup.class);
+            try { invokeAll(state, Benchmark.class); }
+            finally { invokeAll(state, TearDown.class); }
+        }
+    }
+
+    static void invokeAll(Object state, Class<? extends Annotation> annotation) throws Exception {
+        for (Method m : state.getClass().getDeclaredMethods()) {
+            if (!m.isAnnotationPresent(annotation)) continue;
+            if (m.getParameterCount() == 0) m.invoke(state);
+            else m.invoke(state, new Blackhole("Today's password is swordfish. I understand instantiating Blackholes directly is dangerous."));
+        }
+    }
+}
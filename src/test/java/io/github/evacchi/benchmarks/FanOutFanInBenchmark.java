@@ -0,0 +1,71 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One producer broadcasts to N workers (like the chat {@code clientManager}),
+ * every worker replies to a single collector.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class FanOutFanInBenchmark {
+    static final int MESSAGES = 1_000;
+
+    record Work(int n) {}
+    record Done(int n) {}
+
+    @Param({"untyped", "typed"}) String api;
+    @Param({"cached", "fixed", "forkjoin"}) String executor;
+    @Param({"1", "64"}) int throughput;
+    @Param({"16", "256"}) int workers;
+
+    Harness harness;
+    Harness.Ref producer;
+    volatile CountDownLatch done;
+
+    @Setup
+    public void setup() {
+        harness = Harness.of(api, executor, throughput);
+        var collector = harness.spawn((self, msg) -> done.countDown());
+        var routees = new Harness.Ref[workers];
+        for (int i = 0; i < workers; i++) {
+            routees[i] = harness.spawn((self, msg) -> collector.tell(new Done(((Work) msg).n())));
+        }
+        producer = harness.spawn((self, msg) -> { for (var r : routees) r.tell(msg); });
+    }
+
+    @TearDown
+    public void tearDown() { harness.shutdown(); }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void broadcast() {
+        var latch = done = new CountDownLatch(MESSAGES * workers);
+        for (int i = 0; i < MESSAGES; i++) producer.tell(new Work(i));
+        Harness.await(latch);
+    }
+}
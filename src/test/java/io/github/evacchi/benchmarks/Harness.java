@@ -0,0 +1,110 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi.benchmarks;
+
+import io.github.evacchi.Actor;
+import io.github.evacchi.TypedActor;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs the same benchmark body against {@link Actor.System} and {@link TypedActor.System},
+ * on top of the executor selected by name.
+ */
+interface Harness {
+    interface Ref { void tell(Object msg); }
+    interface Handler { void receive(Ref self, Object msg); }
+
+    /** Spawns an actor that feeds every message to the handler and always stays in the same state. */
+    Ref spawn(Handler handler);
+    void shutdown();
+
+    /** Capacity of the "array" mailbox: more than the messages any benchmark keeps in flight per actor. */
+    int ARRAY_CAPACITY = 1024;
+
+    static Harness of(String api, String executor, int throughput) { return of(api, executor, throughput, "mpsc"); }
+
+    static Harness of(String api, String executor, int throughput, String mailbox) {
+        var executorService = executor(executor);
+        return switch (api) {
+            case "untyped" -> {
+                var system = new Actor.System(executorService, Actor.Props.Default.withThroughput(throughput)
+                        .withMailbox(() -> switch (mailbox) {
+                            case "clq" -> Actor.Mailbox.concurrentLinkedQueue();
+                            case "array" -> Actor.Mailbox.mpscArray(ARRAY_CAPACITY);
+                            default -> Actor.Mailbox.mpsc();
+                        }));
+                yield new Harness() {
+                    public Ref spawn(Handler handler) {
+                        Actor.Address addr = system.actorOf(self -> {
+                            Ref ref = self::tell;
+                            return msg -> { handler.receive(ref, msg); return Actor.Stay; };
+                        });
+                        return addr::tell;
+                    }
+                    public void shutdown() { Harness.shutdown(executorService); }
+                };
+            }
+            case "typed" -> {
+                var system = new TypedActor.System(executorService, TypedActor.Props.Default.withThroughput(throughput)
+                        .withMailbox(() -> switch (mailbox) {
+                            case "clq" -> TypedActor.Mailbox.concurrentLinkedQueue();
+                            case "array" -> TypedActor.Mailbox.mpscArray(ARRAY_CAPACITY);
+                            default -> TypedActor.Mailbox.mpsc();
+                        }));
+                yield new Harness() {
+                    public Ref spawn(Handler handler) {
+                        TypedActor.Address<Object> addr = system.actorOf(self -> {
+                            Ref ref = self::tell;
+                            return msg -> { handler.receive(ref, msg); return TypedActor.Stay(); };
+                        });
+                        return addr::tell;
+                    }
+                    public void shutdown() { Harness.shutdown(executorService); }
+                };
+            }
+            default -> throw new IllegalArgumentException("Unknown api " + api);
+        };
+    }
+
+    static ExecutorService executor(String name) {
+        return switch (name) {
+            case "cached" -> Executors.newCachedThreadPool();
+            case "fixed" -> Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            case "forkjoin" -> Actor.Dispatchers.forkJoin();
+            case "virtual" -> Actor.Dispatchers.virtualThreads(); // JDK 21+ only, hence not in the default @Params: -p executor=virtual
+            default -> throw new IllegalArgumentException("Unknown executor " + name);
+        };
+    }
+
+    /** Lets in-flight messages drain, so that actors do not reschedule onto a terminated executor. */
+    static void shutdown(ExecutorService executorService) {
+        executorService.shutdown();
+        try { executorService.awaitTermination(30, TimeUnit.SECONDS); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(30, TimeUnit.SECONDS)) throw new IllegalStateException("Timed out waiting for actors");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trip latency between two actors, modeled on {@code typed/examples/PingPong}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class PingPongBenchmark {
+    static final int ROUND_TRIPS = 10_000;
+
+    record Ping(Harness.Ref sender, int remaining) {}
+    record Pong(Harness.Ref sender, int remaining) {}
+
+    @Param({"untyped", "typed"}) String api;
+    @Param({"cached", "fixed", "forkjoin"}) String executor;
+    @Param({"1"}) int throughput;
+
+    Harness harness;
+    Harness.Ref ponger, pinger;
+    volatile CountDownLatch done;
+
+    @Setup
+    public void setup() {
+        harness = Harness.of(api, executor, throughput);
+        ponger = harness.spawn((self, msg) -> {
+            if (msg instanceof Ping p) p.sender().tell(new Pong(self, p.remaining()));
+        });
+        pinger = harness.spawn((self, msg) -> {
+            if (msg instanceof Pong p) {
+                if (p.remaining() == 0) done.countDown();
+                else p.sender().tell(new Ping(self, p.remaining() - 1));
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() { harness.shutdown(); }
+
+    @Benchmark
+    @OperationsPerInvocation(ROUND_TRIPS)
+    public void roundTrip() {
+        var latch = done = new CountDownLatch(1);
+        ponger.tell(new Ping(pinger, ROUND_TRIPS - 1));
+        Harness.await(latch);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Many producer threads {@code tell} the same actor. Producers are throttled to a
+ * window of in-flight messages so that the measured rate is the one the consumer
+ * actually sustains, instead of the rate at which the mailbox can grow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class TellContentionBenchmark {
+    static final long MAX_IN_FLIGHT = 100_000;
+
+    @Param({"untyped", "typed"}) String api;
+    @Param({"cached", "fixed", "forkjoin"}) String executor;
+    @Param({"1", "64"}) int throughput;
+    @Param({"mpsc", "clq"}) String mailbox;
+
+    Harness harness;
+    Harness.Ref consumer;
+    final AtomicLong sent = new AtomicLong(), received = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        harness = Harness.of(api, executor, throughput, mailbox);
+        consumer = harness.spawn((self, msg) -> received.lazySet(received.get() + 1)); // single writer
+    }
+
+    @TearDown
+    public void tearDown() {
+        while (received.get() < sent.get()) Thread.onSpinWait(); // drain the mailbox before shutting down
+        harness.shutdown();
+    }
+
+    @Benchmark
+    public void tell() {
+        while (sent.get() - received.get() > MAX_IN_FLIGHT) Thread.onSpinWait();
+        sent.incrementAndGet();
+        consumer.tell(Boolean.TRUE);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *    Copyright 2021 Edoardo Vacchi
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package io.github.evacchi.remote;
+
+import io.github.evacchi.Actor;
+import io.github.evacchi.asyncchat.ChannelActor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(30)
+class RemoteTest {
+    record Hello(Actor.Address replyTo, String text) implements Serializable {}
+
+    final Actor.System system = new Actor.System(Executors.newCachedThreadPool());
+    final Remote remote = new Remote(system, "localhost", 2552, Remote.Serializer.java("io.github.evacchi.remote.RemoteTest$Hello"));
+
+    // As if a peer had sent msg to the local `path`
+    void deliver(String path, Object msg) throws IOException {
+        var payload = Base64.getEncoder().encodeToString(remote.serializer.serialize(msg, remote::pathOf));
+        remote.received(new ChannelActor.LineRead(path.substring(path.indexOf('/') + 1) + ' ' + payload));
+    }
+    static String name(String path) { return path.substring(path.indexOf('/') + 1); }
+
+    @Test
+    void serializerSwapsAddressesForPaths() throws IOException {
+        var bytes = remote.serializer.serialize(new Hello(remote.addressOf("otherhost:2553/greeter"), "hi"), remote::pathOf);
+        var hello = (Hello) remote.serializer.deserialize(bytes, remote::addressOf);
+        assertEquals("hi", hello.text());
+        assertEquals(new Remote.RemoteAddress(remote, "otherhost:2553", "greeter"), hello.replyTo());
+    }
+
+    @Test
+    void serializerReadsOnlyAllowedClasses() throws IOException {
+        var bytes = remote.serializer.serialize(new Hello(remote.addressOf("otherhost:2553/greeter"), "hi"), remote::pathOf);
+        assertThrows(InvalidClassException.class, () -> Remote.Serializer.java().deserialize(bytes, remote::addressOf));
+        assertEquals("plain", Remote.Serializer.java().deserialize(Remote.Serializer.java().serialize("plain", remote::pathOf), remote::addressOf));
+    }
+
+    @Test
+    void actorsKeepTheirNameUntilTheyStop() throws Exception {
+        var received = new LinkedBlockingQueue<Object>();
+        var actor = system.actorOf(self -> msg -> { received.add(msg); return Actor.Stay; });
+        var path = remote.pathOf(actor);
+        assertEquals(path, remote.pathOf(actor));
+        deliver(path, "one");
+        deliver(path, "two");
+        assertEquals("one", received.poll(10, TimeUnit.SECONDS));
+        assertEquals("two", received.poll(10, TimeUnit.SECONDS));
+        system.stop(actor);
+        while (remote.registry.containsKey(name(path))) Thread.sleep(1);
+        assertFalse(remote.names.containsKey(actor));
+    }
+
+    @Test
+    void otherAddressesGetAOneShotName() throws Exception {
+        var received = new LinkedBlockingQueue<Object>();
+        Actor.Address callback = msg -> { received.add(msg); return null; };
+        var path = remote.pathOf(callback);
+        deliver(path, "one");
+        assertEquals("one", received.poll(10, TimeUnit.SECONDS));
+        assertFalse(remote.registry.containsKey(name(path)));
+        assertTrue(remote.leases.isEmpty());
+        deliver(path, "two");
+        assertEquals(1, system.deadLetters().count());
+        assertNull(received.poll(50, TimeUnit.MILLISECONDS));
+        assertNotEquals(path, remote.pathOf(callback), "named anew");
+    }
+
+    @Test
+    void askNamesAreDroppedWhenTheAskCompletes() throws Exception {
+        var silent = system.actorOf(self -> msg -> Actor.Stay);
+        var path = new String[1];
+        var ask = system.ask(silent, replyTo -> { path[0] = remote.pathOf(replyTo); return "request"; }, 50, TimeUnit.MILLISECONDS);
+        assertThrows(ExecutionException.class, ask::get);
+        while (remote.registry.containsKey(name(path[0]))) Thread.sleep(1); // released by the timer thread, right after it fails the ask
+        assertTrue(remote.leases.isEmpty());
+        assertTrue(remote.names.isEmpty());
+    }
+}